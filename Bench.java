@@ -0,0 +1,286 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+// Throughput benchmarks for the parsing, stemming, indexing and query paths,
+// run against the bundled ft911 collection and the index files in the
+// working directory (run Indexer first).
+//
+// Each benchmark runs a number of untimed warmup iterations so the JIT has
+// compiled the hot loops, then reports per-iteration times over the measured
+// iterations. Every benchmark returns a count derived from its work; those are
+// summed into a volatile sink so the JIT cannot discard the work as dead code.
+public class Bench {
+
+    private interface Body {
+        // one iteration; returns the number of units processed
+        long run() throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final String unit;
+        final Body body;
+
+        Benchmark(String name, String unit, Body body) {
+            this.name = name;
+            this.unit = unit;
+            this.body = body;
+        }
+    }
+
+    private static volatile long sink;
+
+    private int warmup = 3;
+    private int iterations = 5;
+
+    // collection text, read once so the in-memory benchmarks don't measure I/O
+    private final List<String> texts = new ArrayList<>();
+    // non-stopword tokens of the collection, in order, and the distinct ones
+    private final List<char[]> tokens = new ArrayList<>();
+    private final List<char[]> vocabulary = new ArrayList<>();
+
+    private Indexer indexer;
+    private QueryProcessor qp;
+    private List<QueryProcessor.Topic> topics;
+    // dictionary.dict, opened on first use
+    private TermDictionary dictionary;
+    // inverted_index.bin re-encoded with each codec
+    private final Map<String, BinaryIndex> codecIndexes = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        Bench b = new Bench();
+        Set<String> selected = new LinkedHashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-warmup") && i + 1 < args.length) {
+                b.warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-iterations") && i + 1 < args.length) {
+                b.iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].startsWith("-")) {
+                System.out.println("Usage: java Bench [-warmup <n>] [-iterations <n>] [benchmark ...]");
+                System.out.println("  benchmarks: read tokenize porter stemcache index startup dict varint pfor title titledesc titlenarr");
+                return;
+            } else {
+                selected.add(args[i]);
+            }
+        }
+
+        b.setUp();
+        System.out.printf(Locale.US, "%-10s %8s %10s %10s %10s %14s%n",
+                "benchmark", "iters", "mean ms", "min ms", "max ms", "throughput");
+        for (Benchmark bm : b.benchmarks()) {
+            if (selected.isEmpty() || selected.contains(bm.name)) b.measure(bm);
+        }
+    }
+
+    // The body of one benchmark over a Bench set up in the working directory,
+    // for the JMH harness in bench/. JMH refuses benchmarks in the default
+    // package and a named package cannot refer to this one, so it looks this
+    // method up once by reflection and then calls the Callable directly.
+    public static Callable<Long> body(String name) throws IOException {
+        Bench b = new Bench();
+        b.setUp();
+        for (Benchmark bm : b.benchmarks()) {
+            if (bm.name.equals(name)) return () -> bm.body.run();
+        }
+        throw new IllegalArgumentException("Unknown benchmark " + name);
+    }
+
+    private void setUp() throws IOException {
+        for (File f : collectionFiles()) {
+            try (TrecReader r = new TrecReader(f)) {
+                while (r.next()) texts.add(r.text().toString());
+            }
+        }
+
+        CharArrayMap stop = new CharArrayMap();
+        BufferedReader br = new BufferedReader(new FileReader("stopwordlist.txt"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim().toLowerCase();
+            if (!line.isEmpty()) stop.put(line, 1);
+        }
+        br.close();
+
+        CharArrayMap seen = new CharArrayMap();
+        Tokenizer tok = new Tokenizer(false);
+        for (String text : texts) {
+            tok.reset(text);
+            while (tok.next()) {
+                if (stop.contains(tok.buffer(), 0, tok.length())) continue;
+                char[] w = Arrays.copyOf(tok.buffer(), tok.length());
+                tokens.add(w);
+                if (!seen.contains(w, 0, w.length)) {
+                    seen.put(new String(w), 1);
+                    vocabulary.add(w);
+                }
+            }
+        }
+        System.out.println("Collection: " + texts.size() + " documents, " + tokens.size()
+                + " tokens, " + vocabulary.size() + " distinct");
+
+        indexer = new Indexer();
+        indexer.loadStopwords("stopwordlist.txt");
+        indexer.loadDictionaryFromParser("parser_output.txt");
+    }
+
+    private List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+
+        // TrecReader over the collection files, including file I/O
+        list.add(new Benchmark("read", "docs", () -> {
+            long docs = 0;
+            for (File f : collectionFiles()) {
+                try (TrecReader r = new TrecReader(f)) {
+                    while (r.next()) docs += r.text().length() > 0 ? 1 : 0;
+                }
+            }
+            return docs;
+        }));
+
+        // TextParser / Indexer tokenization of the document text
+        list.add(new Benchmark("tokenize", "tokens", () -> {
+            Tokenizer tok = new Tokenizer(false);
+            long n = 0;
+            for (String text : texts) {
+                tok.reset(text);
+                while (tok.next()) n++;
+            }
+            return n;
+        }));
+
+        // uncached stemming of every distinct word
+        list.add(new Benchmark("porter", "words", () -> {
+            Porter p = new Porter();
+            char[] work = new char[64];
+            long n = 0;
+            for (char[] w : vocabulary) {
+                if (w.length > work.length) work = new char[w.length];
+                System.arraycopy(w, 0, work, 0, w.length);
+                n += p.stem(work, w.length) > 0 ? 1 : 0;
+            }
+            return n;
+        }));
+
+        // stemming of the full token stream through the cache, as the indexer does it
+        list.add(new Benchmark("stemcache", "tokens", () -> {
+            StemCache cache = new StemCache(1 << 17);
+            long n = 0;
+            for (char[] w : tokens) n += cache.stem(w, 0, w.length).length() > 0 ? 1 : 0;
+            return n;
+        }));
+
+        // Indexer.processDocument: tokenize, stop, stem, term lookup, tf counting
+        list.add(new Benchmark("index", "docs", () -> {
+            long n = 0;
+            for (String text : texts) n += indexer.processDocument(text).isEmpty() ? 0 : 1;
+            return n;
+        }));
+
+        // QueryProcessor startup: dictionary, index, DOCNOs, idf and document norms;
+        // closed again, so iterations don't pile up mapped files and stem caches
+        list.add(new Benchmark("startup", "loads", () -> {
+            try (QueryProcessor q = loadQueryProcessor()) {
+                return q.numDocs() > 0 ? 1 : 0;
+            }
+        }));
+
+        // frozen dictionary lookups of every distinct word, straight from the token slices
+        list.add(new Benchmark("dict", "lookups", () -> {
+            if (dictionary == null) dictionary = TermDictionary.open("dictionary.dict");
+            long n = 0;
+            for (char[] w : vocabulary) n += dictionary.termId(w, 0, w.length) >= -1 ? 1 : 0;
+            return n;
+        }));
+
+        // decoding every postings list of the index, re-encoded with each codec
+        for (PostingsCodec codec : new PostingsCodec[]{PostingsCodec.VARINT, PostingsCodec.PFOR}) {
+            list.add(new Benchmark(codec.name(), "postings", () -> {
+                BinaryIndex bi = codecIndex(codec);
+                long n = 0;
+                for (int e = 0; e < bi.numTerms(); e++) n += bi.postings(bi.termIdAt(e)).size;
+                return n;
+            }));
+        }
+
+        for (QueryProcessor.QueryMode mode : QueryProcessor.QueryMode.values()) {
+            String name = mode.name().toLowerCase().replace("_", "");
+            list.add(new Benchmark(name, "queries", () -> {
+                QueryProcessor q = queryProcessor();
+                long n = 0;
+                for (QueryProcessor.Topic t : topics) {
+                    if (t == null) continue;
+                    n += q.rankTopic(t, mode).size >= 0 ? 1 : 0;
+                }
+                return n;
+            }));
+        }
+        return list;
+    }
+
+    private void measure(Benchmark bm) throws Exception {
+        long units = 0;
+        for (int i = 0; i < warmup; i++) sink += bm.body.run();
+
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            units = bm.body.run();
+            times[i] = System.nanoTime() - start;
+            sink += units;
+        }
+
+        long total = 0, min = Long.MAX_VALUE, max = 0;
+        for (long t : times) {
+            total += t;
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        double mean = (double) total / iterations;
+        System.out.printf(Locale.US, "%-10s %8d %10.2f %10.2f %10.2f %14s%n",
+                bm.name, iterations, mean / 1e6, min / 1e6, max / 1e6,
+                String.format(Locale.US, "%.0f %s/s", units / (mean / 1e9), bm.unit));
+    }
+
+    private QueryProcessor queryProcessor() throws IOException {
+        if (qp == null) {
+            qp = loadQueryProcessor();
+            topics = qp.loadTopics("topics.txt");
+        }
+        return qp;
+    }
+
+    private BinaryIndex codecIndex(PostingsCodec codec) throws IOException {
+        BinaryIndex bi = codecIndexes.get(codec.name());
+        if (bi != null) return bi;
+        File f = File.createTempFile("bench_" + codec.name(), ".bin");
+        f.deleteOnExit();
+        try (BinaryIndex src = BinaryIndex.open("inverted_index.bin");
+             BinaryIndex.Writer out = new BinaryIndex.Writer(f.getPath(), src.numDocs(), codec)) {
+            for (int e = 0; e < src.numTerms(); e++) {
+                PostingList pl = src.postings(src.termIdAt(e));
+                out.addTerm(src.termIdAt(e), pl.docIds, pl.tfs, pl.size, src.maxWeightAt(e));
+            }
+        }
+        System.out.println(codec.name() + ": binary index " + f.length() / 1024 + " KB");
+        bi = BinaryIndex.open(f.getPath());
+        codecIndexes.put(codec.name(), bi);
+        return bi;
+    }
+
+    private static QueryProcessor loadQueryProcessor() throws IOException {
+        QueryProcessor q = new QueryProcessor();
+        q.load();
+        return q;
+    }
+
+    private static List<File> collectionFiles() throws IOException {
+        File[] files = new File("ft911").listFiles();
+        if (files == null) throw new IOException("Collection directory not found: ft911");
+        Arrays.sort(files);
+        List<File> list = new ArrayList<>();
+        for (File f : files)
+            if (f.isFile()) list.add(f);
+        return list;
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Binary inverted index segment.
+//
+// Layout (big-endian):
+//   header      MAGIC, VERSION, numDocs, numTerms, termTableOffset (long), codec id
+//   postings    per term, in blocks of BLOCK_SIZE postings:
+//                 skip data (lists of more than one block): per block its
+//                 last docId and the end offset of its data
+//                 per block: docId gaps, then tf - 1, each encoded by the codec
+//               the first gap of a block is from the previous block's last docId
+//   term table  numTerms fixed-size entries sorted by termId:
+//               termId, df, postings offset (long), postings length in bytes,
+//               max weight (float): upper bound of (1+log tf)*idf/|d| over the
+//               term's postings, used for MaxScore pruning
+//
+// The reader maps the whole file read-only, so opening it costs nothing
+// beyond the mmap call and postings are decoded only when a query asks:
+// postings() decodes a whole list, a Cursor one block at a time as it is
+// reached. Version 2 files (interleaved varint docId gap / tf, no blocks)
+// are still read.
+class BinaryIndex implements Closeable {
+
+    static final int MAGIC = 0x49525831; // "IRX1"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 28;
+    static final int ENTRY_SIZE = 24;
+    static final int BLOCK_SIZE = 128;
+    static final int SKIP_ENTRY_SIZE = 8;
+    static final PostingsCodec DEFAULT_CODEC = PostingsCodec.PFOR;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final int version;
+    private final int numDocs;
+    private final int numTerms;
+    private final int termTable;
+    // null for version 2
+    private final PostingsCodec codec;
+
+    private BinaryIndex(FileChannel channel, MappedByteBuffer buf) throws IOException {
+        this.channel = channel;
+        this.buf = buf;
+        this.version = buf.getInt(4);
+        if (buf.getInt(0) != MAGIC || (version != 2 && version != VERSION)) {
+            throw new IOException("Not a binary index (bad magic/version)");
+        }
+        this.numDocs = buf.getInt(8);
+        this.numTerms = buf.getInt(12);
+        this.termTable = (int) buf.getLong(16);
+        try {
+            this.codec = version == 2 ? null : PostingsCodec.forId(buf.getInt(24));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    static BinaryIndex open(String filename) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        return new BinaryIndex(ch, mb);
+    }
+
+    int numDocs() {
+        return numDocs;
+    }
+
+    int numTerms() {
+        return numTerms;
+    }
+
+    // codec to write more postings like these with; version 2 files get the default
+    PostingsCodec codec() {
+        return codec == null ? DEFAULT_CODEC : codec;
+    }
+
+    int termIdAt(int entry) {
+        return buf.getInt(termTable + entry * ENTRY_SIZE);
+    }
+
+    int dfAt(int entry) {
+        return buf.getInt(termTable + entry * ENTRY_SIZE + 4);
+    }
+
+    float maxWeightAt(int entry) {
+        return buf.getFloat(termTable + entry * ENTRY_SIZE + 20);
+    }
+
+    // binary search in the term table, -1 if the term has no postings
+    int findEntry(int termId) {
+        int lo = 0, hi = numTerms - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int t = termIdAt(mid);
+            if (t < termId) lo = mid + 1;
+            else if (t > termId) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    PostingList postings(int termId) {
+        int entry = findEntry(termId);
+        if (entry < 0) return null;
+        int base = termTable + entry * ENTRY_SIZE;
+        int df = buf.getInt(base + 4);
+        int pos = (int) buf.getLong(base + 8);
+        if (codec == null) return postingsV2(df, pos);
+
+        int[] docIds = new int[df];
+        int[] tfs = new int[df];
+        int numBlocks = numBlocks(df);
+        int p = pos + (numBlocks > 1 ? numBlocks * SKIP_ENTRY_SIZE : 0);
+        int docId = 0;
+        for (int from = 0; from < df; from += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, df - from);
+            p = codec.decode(buf, p, docIds, from, n);
+            p = codec.decode(buf, p, tfs, from, n);
+            for (int i = from; i < from + n; i++) {
+                docId += docIds[i];
+                docIds[i] = docId;
+                tfs[i]++;
+            }
+        }
+        Telemetry.postingsBytes.add(p - pos);
+        return new PostingList(docIds, tfs, df);
+    }
+
+    private PostingList postingsV2(int df, int pos) {
+        int start = pos;
+        int[] docIds = new int[df];
+        int[] tfs = new int[df];
+        int docId = 0;
+        for (int n = 0; n < df; n++) {
+            int v = 0, shift = 0, b;
+            do {
+                b = buf.get(pos++);
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            docId += v;
+
+            v = 0;
+            shift = 0;
+            do {
+                b = buf.get(pos++);
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            docIds[n] = docId;
+            tfs[n] = v;
+        }
+        Telemetry.postingsBytes.add(pos - start);
+        return new PostingList(docIds, tfs, df);
+    }
+
+    static int numBlocks(int df) {
+        return (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    // Block-at-a-time reader for termId, null if it has no postings or the
+    // file has no blocks (version 2).
+    Cursor cursor(int termId) {
+        if (codec == null) return null;
+        int entry = findEntry(termId);
+        if (entry < 0) return null;
+        int base = termTable + entry * ENTRY_SIZE;
+        return new Cursor(buf.getInt(base + 4), (int) buf.getLong(base + 8));
+    }
+
+    // Decodes a block only when load() asks for it; findBlock() picks the
+    // block holding a target docId from the skip data, without decoding the
+    // blocks in between. The current block's postings are docIds/tfs[0 .. size).
+    class Cursor {
+        final int df;
+        final int numBlocks;
+        final int[] docIds = new int[BLOCK_SIZE];
+        final int[] tfs = new int[BLOCK_SIZE];
+        int block = -1;
+        int size = 0;
+        private final int skip;
+        private final int data;
+
+        private Cursor(int df, int pos) {
+            this.df = df;
+            this.numBlocks = numBlocks(df);
+            this.skip = pos;
+            this.data = pos + (numBlocks > 1 ? numBlocks * SKIP_ENTRY_SIZE : 0);
+        }
+
+        private int lastDocId(int k) {
+            return buf.getInt(skip + k * SKIP_ENTRY_SIZE);
+        }
+
+        // Decodes block k (numBlocks leaves the cursor exhausted, size 0).
+        void load(int k) {
+            block = k;
+            if (k >= numBlocks) {
+                size = 0;
+                return;
+            }
+            int start = k == 0 ? data : data + buf.getInt(skip + (k - 1) * SKIP_ENTRY_SIZE + 4);
+            int n = Math.min(BLOCK_SIZE, df - k * BLOCK_SIZE);
+            int p = codec.decode(buf, start, docIds, 0, n);
+            p = codec.decode(buf, p, tfs, 0, n);
+            int docId = k == 0 ? 0 : lastDocId(k - 1);
+            for (int i = 0; i < n; i++) {
+                docId += docIds[i];
+                docIds[i] = docId;
+                tfs[i]++;
+            }
+            size = n;
+            Telemetry.postingsBytes.add(p - start);
+            Telemetry.postingsDecoded.add(n);
+        }
+
+        // first block k >= from whose last docId is >= target, numBlocks if none
+        int findBlock(int from, int target) {
+            if (numBlocks == 1) return from;
+            if (from >= numBlocks || lastDocId(from) >= target) return from;
+            int lo = from, hi = numBlocks - 1;
+            if (lastDocId(hi) < target) return numBlocks;
+            // lastDocId(lo) < target <= lastDocId(hi)
+            while (lo + 1 < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (lastDocId(mid) < target) lo = mid;
+                else hi = mid;
+            }
+            return hi;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // WRITER
+
+    // Streams terms in ascending termId order; the term table and header
+    // are written on close.
+    static class Writer implements Closeable {
+        private final FileChannel out;
+        private final ByteBuffer bb = ByteBuffer.allocate(1 << 16);
+        private final int numDocs;
+        private final PostingsCodec codec;
+        private long position = HEADER_SIZE;
+
+        // one term's encoded blocks and skip data before they are written
+        private ByteBuffer blocks = ByteBuffer.allocate(1 << 12);
+        private final int[] gaps = new int[BLOCK_SIZE];
+        private final int[] freqs = new int[BLOCK_SIZE];
+        private int[] skipLast = new int[16];
+        private int[] skipEnd = new int[16];
+
+        private int numTerms = 0;
+        private int lastTermId = Integer.MIN_VALUE;
+        private int[] termIds = new int[1024];
+        private int[] dfs = new int[1024];
+        private long[] offsets = new long[1024];
+        private int[] lengths = new int[1024];
+        private float[] maxWeights = new float[1024];
+
+        Writer(String filename, int numDocs) throws IOException {
+            this(filename, numDocs, DEFAULT_CODEC);
+        }
+
+        Writer(String filename, int numDocs, PostingsCodec codec) throws IOException {
+            this.out = FileChannel.open(Paths.get(filename),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.numDocs = numDocs;
+            this.codec = codec;
+            out.position(HEADER_SIZE);
+        }
+
+        // docIds must be ascending
+        void addTerm(int termId, int[] docIds, int[] tfs, int count, double maxWeight) throws IOException {
+            if (termId <= lastTermId) {
+                throw new IllegalArgumentException("Terms must be added in ascending order: " + termId);
+            }
+            lastTermId = termId;
+            if (numTerms == termIds.length) grow();
+
+            long start = position;
+            int numBlocks = numBlocks(count);
+            if (skipLast.length < numBlocks) {
+                skipLast = new int[numBlocks];
+                skipEnd = new int[numBlocks];
+            }
+            blocks.clear();
+            int prev = 0;
+            for (int blk = 0; blk < numBlocks; blk++) {
+                int from = blk * BLOCK_SIZE;
+                int n = Math.min(BLOCK_SIZE, count - from);
+                for (int i = 0; i < n; i++) {
+                    gaps[i] = docIds[from + i] - prev;
+                    freqs[i] = tfs[from + i] - 1;
+                    prev = docIds[from + i];
+                }
+                if (blocks.remaining() < 2 * codec.maxBytes(n)) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(blocks.capacity() * 2, 4 * codec.maxBytes(n)));
+                    blocks.flip();
+                    blocks = bigger.put(blocks);
+                }
+                codec.encode(gaps, n, blocks);
+                codec.encode(freqs, n, blocks);
+                skipLast[blk] = prev;
+                skipEnd[blk] = blocks.position();
+            }
+            if (numBlocks > 1) {
+                for (int blk = 0; blk < numBlocks; blk++) {
+                    if (bb.remaining() < SKIP_ENTRY_SIZE) flush();
+                    bb.putInt(skipLast[blk]).putInt(skipEnd[blk]);
+                    position += SKIP_ENTRY_SIZE;
+                }
+            }
+            blocks.flip();
+            position += blocks.remaining();
+            if (bb.remaining() < blocks.remaining()) flush();
+            if (bb.remaining() < blocks.remaining()) {
+                while (blocks.hasRemaining()) out.write(blocks);
+            } else {
+                bb.put(blocks);
+            }
+            termIds[numTerms] = termId;
+            dfs[numTerms] = count;
+            offsets[numTerms] = start;
+            lengths[numTerms] = (int) (position - start);
+            // round up so the stored bound never undercuts the exact double
+            float mw = (float) maxWeight;
+            maxWeights[numTerms] = mw < maxWeight ? Math.nextUp(mw) : mw;
+            numTerms++;
+        }
+
+        private void flush() throws IOException {
+            bb.flip();
+            while (bb.hasRemaining()) out.write(bb);
+            bb.clear();
+        }
+
+        private void grow() {
+            int n = termIds.length * 2;
+            termIds = Arrays.copyOf(termIds, n);
+            dfs = Arrays.copyOf(dfs, n);
+            offsets = Arrays.copyOf(offsets, n);
+            lengths = Arrays.copyOf(lengths, n);
+            maxWeights = Arrays.copyOf(maxWeights, n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            long termTable = out.position();
+            for (int i = 0; i < numTerms; i++) {
+                if (bb.remaining() < ENTRY_SIZE) flush();
+                bb.putInt(termIds[i]).putInt(dfs[i]).putLong(offsets[i]).putInt(lengths[i])
+                        .putFloat(maxWeights[i]);
+            }
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numDocs).putInt(numTerms).putLong(termTable)
+                    .putInt(codec.id());
+            header.flip();
+            out.write(header, 0);
+            out.close();
+        }
+    }
+
+    // Convenience for the in-memory TreeMap index built by Indexer
+    // (both levels must iterate in ascending key order).
+    static void write(Map<Integer, Map<Integer, Integer>> inverted, int numDocs,
+                      Map<Integer, Double> maxWeights, String filename) throws IOException {
+        write(inverted, numDocs, maxWeights, filename, DEFAULT_CODEC);
+    }
+
+    static void write(Map<Integer, Map<Integer, Integer>> inverted, int numDocs,
+                      Map<Integer, Double> maxWeights, String filename, PostingsCodec codec) throws IOException {
+        try (Writer w = new Writer(filename, numDocs, codec)) {
+            int[] docIds = new int[256];
+            int[] tfs = new int[256];
+            for (Map.Entry<Integer, Map<Integer, Integer>> e : inverted.entrySet()) {
+                Map<Integer, Integer> postings = e.getValue();
+                if (postings.size() > docIds.length) {
+                    docIds = new int[postings.size()];
+                    tfs = new int[postings.size()];
+                }
+                int n = 0;
+                for (Map.Entry<Integer, Integer> p : postings.entrySet()) {
+                    docIds[n] = p.getKey();
+                    tfs[n] = p.getValue();
+                    n++;
+                }
+                w.addTerm(e.getKey(), docIds, tfs, n, maxWeights.getOrDefault(e.getKey(), 0.0));
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+// Open-addressing hash map from char sequences to non-negative ints that can be
+// queried with a (char[], offset, length) slice, so token lookups need no String.
+class CharArrayMap {
+
+    private char[][] keys;
+    private int[] values;
+    private int size = 0;
+
+    CharArrayMap() {
+        this(64);
+    }
+
+    CharArrayMap(int expected) {
+        int cap = 16;
+        while (cap * 3 < expected * 4) cap <<= 1;
+        keys = new char[cap][];
+        values = new int[cap];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void put(CharSequence key, int value) {
+        if ((size + 1) * 4 > keys.length * 3) rehash();
+        int len = key.length();
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + key.charAt(i);
+        int mask = keys.length - 1;
+        int slot = mix(h) & mask;
+        while (keys[slot] != null) {
+            if (equals(keys[slot], key)) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        char[] k = new char[len];
+        for (int i = 0; i < len; i++) k[i] = key.charAt(i);
+        keys[slot] = k;
+        values[slot] = value;
+        size++;
+    }
+
+    // value for the slice, or -1 if absent
+    int get(char[] s, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + s[off + i];
+        int mask = keys.length - 1;
+        int slot = mix(h) & mask;
+        char[] k;
+        while ((k = keys[slot]) != null) {
+            if (k.length == len && Arrays.equals(k, 0, len, s, off, off + len)) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    int get(CharSequence key) {
+        int len = key.length();
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + key.charAt(i);
+        int mask = keys.length - 1;
+        int slot = mix(h) & mask;
+        char[] k;
+        while ((k = keys[slot]) != null) {
+            if (equals(k, key)) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    boolean contains(char[] s, int off, int len) {
+        return get(s, off, len) >= 0;
+    }
+
+    boolean contains(CharSequence key) {
+        return get(key) >= 0;
+    }
+
+    private static boolean equals(char[] k, CharSequence s) {
+        if (k.length != s.length()) return false;
+        for (int i = 0; i < k.length; i++) if (k[i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash() {
+        char[][] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new char[oldKeys.length * 2][];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            char[] k = oldKeys[i];
+            if (k == null) continue;
+            int h = 0;
+            for (char c : k) h = 31 * h + c;
+            int slot = mix(h) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = k;
+            values[slot] = oldValues[i];
+        }
+    }
+}
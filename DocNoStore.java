@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// docID -> DOCNO (FT923-3189) for the dense docIDs Indexer assigns, and back.
+//
+// Layout (big-endian):
+//   header    MAGIC, VERSION, docBase (docID of the first entry), numDocs
+//   offsets   numDocs + 1 ints: start of each DOCNO in data, then its end
+//   sorted    numDocs ints: the docIDs ordered by DOCNO, for docId(DOCNO)
+//   data      the DOCNOs, ASCII, one byte per char, back to back
+//
+// The file is mapped read-only like TermDictionary, so loading it reads
+// nothing; a DOCNO is only decoded when a ranking row is written. A docID
+// without a document (an empty entry) has no DOCNO.
+class DocNoStore implements Closeable {
+
+    static final int MAGIC = 0x49524E31; // "IRN1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    // null when built in memory
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private final int docBase;
+    private final int numDocs;
+    private final int sortedTable;
+    private final int data;
+
+    private DocNoStore(FileChannel channel, ByteBuffer buf) throws IOException {
+        this.channel = channel;
+        this.buf = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("Not a DOCNO store (bad magic/version)");
+        }
+        this.docBase = buf.getInt(8);
+        this.numDocs = buf.getInt(12);
+        this.sortedTable = HEADER_SIZE + 4 * (numDocs + 1);
+        this.data = sortedTable + 4 * numDocs;
+    }
+
+    static DocNoStore open(String filename) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        return new DocNoStore(ch, mb);
+    }
+
+    // The same structure on the heap; docNos[i] belongs to docID docBase + i
+    // (null for none).
+    static DocNoStore of(int docBase, List<String> docNos) throws IOException {
+        return new DocNoStore(null, encode(docBase, docNos));
+    }
+
+    // Writes aside and renames over filename, so a reader that has the old
+    // file mapped keeps a consistent copy.
+    static void write(String filename, int docBase, List<String> docNos) throws IOException {
+        ByteBuffer bb = encode(docBase, docNos);
+        Path tmp = Paths.get(filename + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining()) out.write(bb);
+        }
+        Files.move(tmp, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer encode(int docBase, List<String> docNos) throws IOException {
+        int n = docNos.size();
+        long dataSize = 0;
+        for (String docNo : docNos) if (docNo != null) dataSize += docNo.length();
+        long size = HEADER_SIZE + 8L * n + 4 + dataSize;
+        if (size > Integer.MAX_VALUE) throw new IOException("DOCNO store too large");
+        ByteBuffer bb = ByteBuffer.allocate((int) size);
+        bb.putInt(MAGIC).putInt(VERSION).putInt(docBase).putInt(n);
+        int offset = 0;
+        for (String docNo : docNos) {
+            bb.putInt(offset);
+            if (docNo != null) offset += docNo.length();
+        }
+        bb.putInt(offset);
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i) -> docNos.get(i), Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (int i : order) bb.putInt(docBase + i);
+
+        for (String docNo : docNos) {
+            if (docNo == null) continue;
+            for (int c = 0; c < docNo.length(); c++) {
+                char ch = docNo.charAt(c);
+                if (ch > 0x7F) throw new IOException("Non-ASCII DOCNO " + docNo);
+                bb.put((byte) ch);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    int docBase() {
+        return docBase;
+    }
+
+    // docID past the last entry
+    int docEnd() {
+        return docBase + numDocs;
+    }
+
+    // DOCNO of docId, null if it has none
+    String docNo(int docId) {
+        int i = docId - docBase;
+        if (i < 0 || i >= numDocs) return null;
+        int from = buf.getInt(HEADER_SIZE + 4 * i), to = buf.getInt(HEADER_SIZE + 4 * (i + 1));
+        if (from == to) return null;
+        char[] chars = new char[to - from];
+        for (int j = 0; j < chars.length; j++) chars[j] = (char) (buf.get(data + from + j) & 0xFF);
+        return new String(chars);
+    }
+
+    // docID of a DOCNO, -1 if it is not in the store; binary search over the sorted table
+    int docId(CharSequence docNo) {
+        int lo = 0, hi = numDocs - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = buf.getInt(sortedTable + 4 * mid);
+            int c = compare(id - docBase, docNo);
+            if (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else return id;
+        }
+        return -1;
+    }
+
+    // compares the DOCNO of entry i (empty for none) with key
+    private int compare(int i, CharSequence key) {
+        int from = buf.getInt(HEADER_SIZE + 4 * i), to = buf.getInt(HEADER_SIZE + 4 * (i + 1));
+        int n = to - from, m = Math.min(n, key.length());
+        for (int j = 0; j < m; j++) {
+            int d = (buf.get(data + from + j) & 0xFF) - key.charAt(j);
+            if (d != 0) return d;
+        }
+        return n - key.length();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
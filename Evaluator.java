@@ -0,0 +1,290 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Scores QueryProcessor's rankings against main.qrels in-process, without
+// writing or re-reading run files: MAP, P@10, R-precision, nDCG@k and
+// recall@1000, averaged over every qrels topic with relevant documents. A
+// judged topic that is not in topics.txt or gets no results counts as 0,
+// like trec_eval -c.
+//
+// -model, -k1 and -b take comma-separated lists and every combination is
+// evaluated. The index is loaded once and shared; each setting only gets its
+// own Scorer, and (setting, topic) pairs are ranked on a thread pool.
+public class Evaluator {
+
+    // rankings are cut at this depth, as trec_eval does
+    static final int DEPTH = 1000;
+
+    // one topic's (or the mean) scores
+    static class Metrics {
+        double ap;
+        double p10;
+        double rPrec;
+        double ndcg;
+        double recall;
+
+        void add(Metrics m) {
+            ap += m.ap;
+            p10 += m.p10;
+            rPrec += m.rPrec;
+            ndcg += m.ndcg;
+            recall += m.recall;
+        }
+
+        Metrics divide(int n) {
+            Metrics m = new Metrics();
+            if (n == 0) return m;
+            m.ap = ap / n;
+            m.p10 = p10 / n;
+            m.rPrec = rPrec / n;
+            m.ndcg = ndcg / n;
+            m.recall = recall / n;
+            return m;
+        }
+    }
+
+    private static class Setting {
+        final String model;
+        final double k1;
+        final double b;
+        QueryProcessor qp;
+
+        Setting(String model, double k1, double b) {
+            this.model = model;
+            this.k1 = k1;
+            this.b = b;
+        }
+
+        String label() {
+            return model.equals("cosine") ? "cosine"
+                    : String.format(Locale.US, "%s k1=%.2f b=%.2f", model, k1, b);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java Evaluator <mode> [-qrels <file>] [-model <names>] [-k1 <values>]"
+                    + " [-b <values>] [-ndcg <k>] [-threads <n>] [-topics]");
+            System.err.println("  <mode>: title | titledesc | titlenarr");
+            System.err.println("  -model, -k1, -b: comma-separated lists; every combination is evaluated");
+            System.err.println("  -ndcg <k>: nDCG cutoff (default 10)");
+            System.err.println("  -threads <n>: rank on n worker threads (default: available processors)");
+            System.err.println("  -topics: also print per-topic scores");
+            return;
+        }
+        QueryProcessor.QueryMode mode = QueryProcessor.parseMode(args[0]);
+        if (mode == null) {
+            System.err.println("Unknown mode: " + args[0]);
+            return;
+        }
+
+        String qrelsFile = "main.qrels";
+        String[] models = {"cosine"};
+        double[] k1s = {1.2};
+        double[] bs = {0.75};
+        int ndcgDepth = 10;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean perTopic = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-qrels") && i + 1 < args.length) {
+                qrelsFile = args[++i];
+            } else if (args[i].equals("-model") && i + 1 < args.length) {
+                models = args[++i].toLowerCase().split(",");
+            } else if (args[i].equals("-k1") && i + 1 < args.length) {
+                k1s = parseList(args[++i]);
+            } else if (args[i].equals("-b") && i + 1 < args.length) {
+                bs = parseList(args[++i]);
+            } else if (args[i].equals("-ndcg") && i + 1 < args.length) {
+                ndcgDepth = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-topics")) {
+                perTopic = true;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        List<Setting> settings = new ArrayList<>();
+        for (String m : models) {
+            if (m.equals("cosine")) {
+                // k1 and b don't apply
+                settings.add(new Setting(m, 1.2, 0.75));
+                continue;
+            }
+            for (double k1 : k1s)
+                for (double b : bs) settings.add(new Setting(m, k1, b));
+        }
+
+        long start = System.nanoTime();
+        QueryProcessor base = new QueryProcessor();
+        base.load();
+        for (Setting s : settings) {
+            try {
+                s.qp = base.withModel(s.model, s.k1, s.b);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+        if (!base.hasDocNos()) {
+            System.err.println("Warning: the index has no DOCNO mapping (inverted_index.docnos);"
+                    + " rebuild it with Indexer to match judgements to documents.");
+        }
+        Qrels qrels = Qrels.read(qrelsFile, base::docId);
+        int judged = 0;
+        for (int t : qrels.topics()) {
+            if (qrels.get(t).numRelevant > 0) judged++;
+        }
+        List<QueryProcessor.Topic> topics = new ArrayList<>();
+        for (QueryProcessor.Topic t : base.loadTopics("topics.txt")) {
+            Qrels.Judgements j = qrels.get(t.number);
+            if (j != null && j.numRelevant > 0) topics.add(t);
+        }
+        long loaded = System.nanoTime();
+
+        if (!topics.isEmpty()) {
+            for (Setting s : settings) {
+                if (!matchesRunFile(s.qp, topics.get(0), mode)) {
+                    System.err.println("Evaluator ranking differs from the run file for " + s.label());
+                    System.exit(1);
+                }
+            }
+        }
+
+        Metrics[][] results = evaluate(settings, topics, qrels, mode, ndcgDepth, threads);
+        long done = System.nanoTime();
+
+        System.out.printf(Locale.US, "%-28s %7s %7s %7s %8s %7s%n",
+                "setting", "MAP", "P@10", "R-prec", "nDCG@" + ndcgDepth, "R@" + DEPTH);
+        for (int s = 0; s < settings.size(); s++) {
+            if (perTopic) {
+                for (int t = 0; t < topics.size(); t++) {
+                    print("  topic " + topics.get(t).number, results[s][t]);
+                }
+            }
+            Metrics sum = new Metrics();
+            for (Metrics m : results[s]) sum.add(m);
+            print(settings.get(s).label(), sum.divide(judged));
+        }
+        System.out.printf(Locale.US, "%d of %d judged topics ranked, %d settings: loaded in %.0f ms, evaluated in %.0f ms%n",
+                topics.size(), judged, settings.size(), (loaded - start) / 1e6, (done - loaded) / 1e6);
+    }
+
+    // results[setting][topic]
+    private static Metrics[][] evaluate(List<Setting> settings, List<QueryProcessor.Topic> topics, Qrels qrels,
+                                        QueryProcessor.QueryMode mode, int ndcgDepth, int threads) throws IOException {
+        Metrics[][] results = new Metrics[settings.size()][topics.size()];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int s = 0; s < settings.size(); s++) {
+                for (int t = 0; t < topics.size(); t++) {
+                    QueryProcessor qp = settings.get(s).qp;
+                    QueryProcessor.Topic topic = topics.get(t);
+                    Metrics[] row = results[s];
+                    int ti = t;
+                    pending.add(pool.submit(() -> {
+                        row[ti] = score(qp.rankTopic(topic, mode, DEPTH), qrels.get(topic.number), ndcgDepth);
+                    }));
+                }
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while evaluating", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Evaluation failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    // Does the top-DEPTH ranking score() is given for t list the same
+    // documents, in the same order, as the run file processAllTopics writes?
+    // Prints the first difference if not.
+    static boolean matchesRunFile(QueryProcessor qp, QueryProcessor.Topic t, QueryProcessor.QueryMode mode)
+            throws IOException {
+        List<String> written = new ArrayList<>();
+        File run = File.createTempFile("evaluator", ".txt");
+        try {
+            qp.processAllTopics(Collections.singletonList(t), mode, run.getPath());
+            try (BufferedReader br = new BufferedReader(new FileReader(run))) {
+                String line;
+                while ((line = br.readLine()) != null && written.size() < DEPTH) written.add(line.split("\t")[1]);
+            }
+        } finally {
+            run.delete();
+        }
+        QueryProcessor.Ranking ranked = qp.rankTopic(t, mode, DEPTH);
+        int rank = 0;
+        for (int i = 0; i < ranked.size && rank < DEPTH; i++) {
+            if (ranked.scores[i] <= 0.0) continue;
+            String docNo = qp.docNo(ranked.docIds[i]);
+            if (rank >= written.size() || !written.get(rank).equals(docNo)) {
+                System.err.println("Topic " + t.number + " rank " + (rank + 1) + ": run file has "
+                        + (rank < written.size() ? written.get(rank) : "nothing") + ", evaluated " + docNo);
+                return false;
+            }
+            rank++;
+        }
+        if (rank < written.size()) {
+            System.err.println("Topic " + t.number + ": run file has " + written.size() + " rows, evaluated " + rank);
+            return false;
+        }
+        return true;
+    }
+
+    // Scores a ranking the way it is written to a run file: in order,
+    // positive scores only, at most DEPTH documents.
+    static Metrics score(QueryProcessor.Ranking ranked, Qrels.Judgements j, int ndcgDepth) {
+        Metrics m = new Metrics();
+        int r = j.numRelevant;
+        int rank = 0, hits = 0;
+        double precisionSum = 0.0, dcg = 0.0;
+        for (int i = 0; i < ranked.size && rank < DEPTH; i++) {
+            if (ranked.scores[i] <= 0.0) continue;
+            rank++;
+            int grade = j.grade(ranked.docIds[i]);
+            if (grade <= 0) continue;
+            hits++;
+            precisionSum += (double) hits / rank;
+            if (rank <= 10) m.p10++;
+            if (rank <= r) m.rPrec++;
+            if (rank <= ndcgDepth) dcg += grade / log2(rank + 1);
+        }
+        double idcg = 0.0;
+        for (int i = 0; i < Math.min(ndcgDepth, r); i++) {
+            idcg += j.ideal[r - 1 - i] / log2(i + 2);
+        }
+        m.ap = precisionSum / r;
+        m.p10 /= 10;
+        m.rPrec /= r;
+        m.ndcg = idcg > 0.0 ? dcg / idcg : 0.0;
+        m.recall = (double) hits / r;
+        return m;
+    }
+
+    private static double log2(int x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    private static void print(String label, Metrics m) {
+        System.out.printf(Locale.US, "%-28s %7.4f %7.4f %7.4f %8.4f %7.4f%n",
+                label, m.ap, m.p10, m.rPrec, m.ndcg, m.recall);
+    }
+
+    private static double[] parseList(String s) {
+        String[] parts = s.split(",");
+        double[] v = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) v[i] = Double.parseDouble(parts[i].trim());
+        return v;
+    }
+}
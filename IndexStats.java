@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.*;
+
+// Collection statistics computed once at index time, so QueryProcessor does
+// not have to re-read forward_index.txt to get document norms.
+//
+// Layout (big-endian):
+//   header     MAGIC, VERSION, numDocs, totalLength (long), docBase
+//   documents  numDocIds, then per docId from docBase: TEXT length (sum of
+//              tf), HEADLINE length (0 when the headline field was not
+//              indexed), norm |d|
+//   terms      numTermIds, then per termId: df, idf (NaN when df == 0)
+//
+// Document arrays are indexed by docId - docBase (docBase is 0 except for
+// appended segments, see Segments), term arrays by termId; unused slots are 0.
+// Version 2 files (no docBase) are still read.
+class IndexStats {
+
+    static final int MAGIC = 0x49525331; // "IRS1"
+    static final int VERSION = 3;
+
+    final int docBase;
+    final int numDocs;
+    final long totalLength;
+    final int[] docLength;
+    final int[] headLength;
+    final double[] docNorm;
+    final int[] df;
+    final double[] idf;
+
+    IndexStats(int numDocs, long totalLength, int[] docLength, int[] headLength,
+               double[] docNorm, int[] df, double[] idf) {
+        this(0, numDocs, totalLength, docLength, headLength, docNorm, df, idf);
+    }
+
+    IndexStats(int docBase, int numDocs, long totalLength, int[] docLength, int[] headLength,
+               double[] docNorm, int[] df, double[] idf) {
+        this.docBase = docBase;
+        this.numDocs = numDocs;
+        this.totalLength = totalLength;
+        this.docLength = docLength;
+        this.headLength = headLength;
+        this.docNorm = docNorm;
+        this.df = df;
+        this.idf = idf;
+    }
+
+    // one past the highest docId covered
+    int docEnd() {
+        return docBase + docLength.length;
+    }
+
+    double avgDocLength() {
+        return numDocs == 0 ? 0.0 : (double) totalLength / numDocs;
+    }
+
+    double avgHeadLength() {
+        long total = 0;
+        for (int len : headLength) total += len;
+        return numDocs == 0 ? 0.0 : (double) total / numDocs;
+    }
+
+    // idf = log(N / df) per termId, NaN where the term has no postings
+    static double[] idf(int[] df, int numDocs) {
+        double[] idf = new double[df.length];
+        for (int t = 0; t < df.length; t++) {
+            idf[t] = df[t] == 0 ? Double.NaN : Math.log((double) numDocs / (double) df[t]);
+        }
+        return idf;
+    }
+
+    // |d| over (1+log tf)*idf weights. freq must iterate in ascending termId
+    // order: every norm (QueryProcessor's fallback, segment merges) sums its
+    // squares in that order, so they agree to the bit.
+    static double norm(Map<Integer, Integer> freq, double[] idf) {
+        double sumSq = 0.0;
+        for (Map.Entry<Integer, Integer> e : freq.entrySet()) {
+            int termId = e.getKey();
+            double idfVal = termId < idf.length ? idf[termId] : Double.NaN;
+            if (Double.isNaN(idfVal)) continue;
+            double w = (1.0 + Math.log(e.getValue())) * idfVal;
+            sumSq += w * w;
+        }
+        return Math.sqrt(sumSq);
+    }
+
+    static int length(Map<Integer, Integer> freq) {
+        int n = 0;
+        for (int tf : freq.values()) n += tf;
+        return n;
+    }
+
+    void write(String filename) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numDocs);
+            out.writeLong(totalLength);
+            out.writeInt(docBase);
+            out.writeInt(docLength.length);
+            for (int d = 0; d < docLength.length; d++) {
+                out.writeInt(docLength[d]);
+                out.writeInt(headLength[d]);
+                out.writeDouble(docNorm[d]);
+            }
+            out.writeInt(df.length);
+            for (int t = 0; t < df.length; t++) {
+                out.writeInt(df[t]);
+                out.writeDouble(idf[t]);
+            }
+        }
+    }
+
+    static IndexStats read(String filename) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an index stats file (bad magic): " + filename);
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != 2) {
+                throw new IOException("Unsupported index stats version " + version + ": " + filename);
+            }
+            int numDocs = in.readInt();
+            long totalLength = in.readLong();
+            int docBase = version >= 3 ? in.readInt() : 0;
+            int numDocIds = in.readInt();
+            int[] docLength = new int[numDocIds];
+            int[] headLength = new int[numDocIds];
+            double[] docNorm = new double[numDocIds];
+            for (int d = 0; d < numDocIds; d++) {
+                docLength[d] = in.readInt();
+                headLength[d] = in.readInt();
+                docNorm[d] = in.readDouble();
+            }
+            int numTermIds = in.readInt();
+            int[] df = new int[numTermIds];
+            double[] idf = new double[numTermIds];
+            for (int t = 0; t < numTermIds; t++) {
+                df[t] = in.readInt();
+                idf[t] = in.readDouble();
+            }
+            return new IndexStats(docBase, numDocs, totalLength, docLength, headLength, docNorm, df, idf);
+        }
+    }
+}
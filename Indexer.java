@@ -1,31 +1,71 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Indexer {
 
-    private Map<String,Integer> termDict = new LinkedHashMap<>();
-    private Map<Integer,String> idToTerm = new LinkedHashMap<>();
-    private Map<String,Integer> docDict = new LinkedHashMap<>();
+    // dictionary terms in the order they were added, for dictionary.txt
+    private List<String> terms = new ArrayList<>();
+    // DOCNO of each document read, in docID order
+    private List<String> docNos = new ArrayList<>();
     private Map<Integer,Map<Integer,Integer>> forwardIndex = new TreeMap<>();
     private Map<Integer,Map<Integer,Integer>> invertedIndex = new TreeMap<>();
-    private Set<String> stopwords = new HashSet<>();
+    // HEADLINE field postings and lengths, for field-weighted scoring (BM25F)
+    private Map<Integer,Map<Integer,Integer>> headlineIndex = new TreeMap<>();
+    private Map<Integer,Integer> headLengths = new HashMap<>();
+    // termID -> docID -> TEXT positions, only filled with -positions; hashed
+    // rather than sorted, PositionIndex.write sorts once at the end
+    private Map<Integer,Map<Integer,int[]>> positionIndex = new HashMap<>();
+    private boolean positions;
+    // thread time spent turning TEXT into postings (and positions), to
+    // compare builds with and without -positions
+    private final LongAdder textNanos = new LongAdder();
+    private CharArrayMap stopwords = new CharArrayMap();
+    // term -> termID, probed without creating a String
+    private CharArrayMap termIds = new CharArrayMap();
+
     private Porter stemmer = new Porter();
+    // shared by all indexing threads
+    private StemCache stems = new StemCache(1 << 17);
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // set in -spimi mode: postings go to budget-bounded runs instead of the TreeMaps
+    private SpimiIndexer spimi;
+    // -codec: block encoding of the binary postings
+    private PostingsCodec codec = BinaryIndex.DEFAULT_CODEC;
+    // Documents get dense docIDs in reading order from nextDocId on: 1 for a
+    // full build, the end of the index for -append. With -append, unseen TEXT
+    // terms get new termIDs from nextTermId on (kept in newTerms for the dictionary).
+    private boolean appending;
+    private int nextDocId = 1;
+    private int nextTermId;
+    private List<String> newTerms = new ArrayList<>();
+
+    // Documents of one input file, indexed without touching the global maps so
+    // files can be processed in parallel and merged afterwards.
+    private static class Partial {
+        final List<String> docNos = new ArrayList<>();
+        final List<Map<Integer,Integer>> freqs = new ArrayList<>();
+        final List<Map<Integer,Integer>> heads = new ArrayList<>();
+        // per document termID -> positions, or null when positions are not indexed
+        final List<Map<Integer,int[]>> positions = new ArrayList<>();
+    }
 
     // Load Stopword List
-    private void loadStopwords(String stopwordFile) throws IOException {
+    void loadStopwords(String stopwordFile) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(stopwordFile));
         String line;
         while ((line = br.readLine()) != null) {
             line = line.trim().toLowerCase();
-            if (!line.isEmpty()) stopwords.add(line);
+            if (!line.isEmpty()) stopwords.put(line, 1);
         }
         br.close();
         System.out.println("Loaded " + stopwords.size() + " stopwords.");
     }
 
     // Load Existing Dictionary from parser_output.txt
-    private void loadDictionaryFromParser(String parserOutputFile) throws IOException {
+    void loadDictionaryFromParser(String parserOutputFile) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(parserOutputFile));
         String line;
         while ((line = br.readLine()) != null) {
@@ -38,86 +78,203 @@ public class Indexer {
                 int id = Integer.parseInt(parts[1]);
                 if (!term.matches("[a-z]+")) continue;
                 if (stopwords.contains(term)) continue;
-                termDict.put(term, id);
-                idToTerm.put(id, term);
+                addTerm(term, id);
             } catch (NumberFormatException e) {
                 
             }
         }
         br.close();
-        System.out.println("Loaded " + termDict.size() + " terms directly from parser_output.txt (keeping same IDs).");
+        System.out.println("Loaded " + terms.size() + " terms directly from parser_output.txt (keeping same IDs).");
+    }
+
+    // Load the dictionary written by an earlier run ("term = id" per line)
+    void loadDictionary(String dictionaryFile) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(dictionaryFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int eq = line.indexOf(" = ");
+                if (eq <= 0) continue;
+                String term = line.substring(0, eq);
+                int id = Integer.parseInt(line.substring(eq + 3).trim());
+                addTerm(term, id);
+                nextTermId = Math.max(nextTermId, id + 1);
+            }
+        }
+        System.out.println("Loaded " + terms.size() + " terms from " + dictionaryFile + ".");
+    }
+
+    // a term seen again keeps its place in dictionary.txt but takes the new ID
+    private void addTerm(String term, int id) {
+        if (!termIds.contains(term)) terms.add(term);
+        termIds.put(term, id);
     }
 
     // Build Forward & Inverted Indices
     private void buildIndices(String inputPath) throws IOException {
+        List<File> inputs = new ArrayList<>();
         File in = new File(inputPath);
         if (in.isDirectory()) {
             File[] files = in.listFiles();
             if (files != null) {
                 Arrays.sort(files);
                 for (File f : files)
-                    if (f.isFile()) processFile(f);
+                    if (f.isFile()) inputs.add(f);
             }
         } else {
-            processFile(in);
+            inputs.add(in);
         }
-    }
 
-    private void processFile(File f) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(f));
-        String line, docNo = null;
-        StringBuilder text = new StringBuilder();
-        boolean inText = false;
+        if (threads <= 1 || inputs.size() <= 1) {
+            for (File f : inputs) merge(processFile(f));
+            return;
+        }
 
-        while ((line = br.readLine()) != null) {
-            line = line.trim();
-            if (line.startsWith("<DOCNO>")) {
-                docNo = line.replace("<DOCNO>", "").replace("</DOCNO>", "").trim();
-            } else if (line.startsWith("<TEXT>")) {
-                text.setLength(0);
-                inText = true;
-            } else if (line.startsWith("</TEXT>")) {
-                inText = false;
-                if (docNo != null) {
-                    int docID = extractDocID(docNo);
-                    docDict.put(docNo, docID);
-                    processDocument(docID, text.toString());
+        // one task per file; partials are merged in file order so docIDs come out
+        // exactly as in a sequential build. At most one task per thread is in
+        // flight, so finished partials wait for the merge a few at a time
+        // rather than the whole collection at once.
+        int workers = Math.min(threads, inputs.size());
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            Deque<Future<Partial>> pending = new ArrayDeque<>();
+            int submitted = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                while (submitted < inputs.size() && submitted < i + workers) {
+                    File f = inputs.get(submitted++);
+                    pending.add(pool.submit(() -> processFile(f)));
+                }
+                try {
+                    merge(pending.poll().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while indexing " + inputs.get(i), e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Indexing failed for " + inputs.get(i), e.getCause());
                 }
-            } else if (inText) {
-                text.append(line).append(" ");
             }
+        } finally {
+            pool.shutdownNow();
         }
-        br.close();
     }
 
-    private int extractDocID(String docNo) {
-        try {
-            String[] parts = docNo.split("-");
-            return Integer.parseInt(parts[1]);
-        } catch (Exception e) {
-            return docDict.size() + 1;
+    private void merge(Partial part) throws IOException {
+        for (int i = 0; i < part.docNos.size(); i++) {
+            int docID = nextDocId++;
+            docNos.add(part.docNos.get(i));
+            Map<Integer,Integer> freq = part.freqs.get(i);
+            if (freq.isEmpty()) continue;
+            if (spimi != null) {
+                spimi.addDocument(docID, freq);
+                continue;
+            }
+            forwardIndex.put(docID, freq);
+            for (Map.Entry<Integer,Integer> e : freq.entrySet()) {
+                invertedIndex.computeIfAbsent(e.getKey(), k -> new TreeMap<>()).put(docID, e.getValue());
+            }
+            Map<Integer,Integer> head = part.heads.get(i);
+            headLengths.put(docID, IndexStats.length(head));
+            for (Map.Entry<Integer,Integer> e : head.entrySet()) {
+                headlineIndex.computeIfAbsent(e.getKey(), k -> new TreeMap<>()).put(docID, e.getValue());
+            }
+            Map<Integer,int[]> pos = part.positions.get(i);
+            if (pos == null) continue;
+            for (Map.Entry<Integer,int[]> e : pos.entrySet()) {
+                positionIndex.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(docID, e.getValue());
+            }
         }
     }
 
-    private void processDocument(int docID, String content) {
-        Matcher m = Pattern.compile("[a-zA-Z]+").matcher(content.toLowerCase());
+    private Partial processFile(File f) throws IOException {
+        Partial part = new Partial();
+        try (TrecReader reader = new TrecReader(f)) {
+            while (reader.next()) {
+                Telemetry.docsIndexed.increment();
+                part.docNos.add(reader.docNo());
+                long t = System.nanoTime();
+                if (positions) {
+                    Map<Integer,int[]> pos = documentPositions(reader.text());
+                    Map<Integer,Integer> freq = new TreeMap<>();
+                    for (Map.Entry<Integer,int[]> e : pos.entrySet()) freq.put(e.getKey(), e.getValue().length);
+                    part.freqs.add(freq);
+                    part.positions.add(pos);
+                } else {
+                    part.freqs.add(processDocument(reader.text(), appending));
+                    part.positions.add(null);
+                }
+                textNanos.add(System.nanoTime() - t);
+                part.heads.add(processDocument(reader.headline()));
+            }
+        }
+        return part;
+    }
+
+    // termID -> tf for one document; only reads shared state, so it is safe to call from several threads
+    Map<Integer,Integer> processDocument(CharSequence content) {
+        return processDocument(content, false);
+    }
+
+    // With allocate, stems missing from the dictionary get the next free
+    // termID instead of being dropped; that writes to the dictionary, so it
+    // needs a single indexing thread.
+    private Map<Integer,Integer> processDocument(CharSequence content, boolean allocate) {
+        long start = System.nanoTime();
+        Tokenizer tok = new Tokenizer(false).reset(content);
         Map<Integer,Integer> freq = new TreeMap<>();
+        int tokens = 0;
 
-        while (m.find()) {
-            String w = m.group();
-            if (stopwords.contains(w)) continue;
-            String stemmed = stemmer.stripAffixes(w);
-            Integer termID = termDict.get(stemmed);
-            if (termID == null) continue;
+        while (tok.next()) {
+            tokens++;
+            if (stopwords.contains(tok.buffer(), 0, tok.length())) continue;
+            String stemmed = stems.stem(tok.buffer(), 0, tok.length());
+            int termID = termIds.get(stemmed);
+            if (termID < 0) {
+                if (!allocate || stemmed.isEmpty() || stopwords.contains(stemmed)) continue;
+                termID = nextTermId++;
+                addTerm(stemmed, termID);
+                newTerms.add(stemmed);
+            }
             freq.put(termID, freq.getOrDefault(termID, 0) + 1);
         }
+        Telemetry.tokensIndexed.add(tokens);
+        Telemetry.indexNanos.add(System.nanoTime() - start);
+        return freq;
+    }
 
-        if (!freq.isEmpty()) {
-            forwardIndex.put(docID, freq);
-            for (Map.Entry<Integer,Integer> e : freq.entrySet()) {
-                invertedIndex.computeIfAbsent(e.getKey(), k -> new TreeMap<>()).put(docID, e.getValue());
-            }
+    // termID -> ascending positions for one document. A position counts the
+    // indexed tokens before it, so stopwords and unknown words leave no gaps
+    // and a query phrase matches across them, as it does when scoring.
+    Map<Integer,int[]> documentPositions(CharSequence content) {
+        long start = System.nanoTime();
+        Tokenizer tok = new Tokenizer(false).reset(content);
+        // termID << 32 | position per indexed token; sorting groups each term's positions in order
+        long[] keys = new long[256];
+        int n = 0;
+        int tokens = 0;
+
+        while (tok.next()) {
+            tokens++;
+            if (stopwords.contains(tok.buffer(), 0, tok.length())) continue;
+            String stemmed = stems.stem(tok.buffer(), 0, tok.length());
+            int termID = termIds.get(stemmed);
+            if (termID < 0) continue;
+            if (n == keys.length) keys = Arrays.copyOf(keys, n * 2);
+            keys[n] = ((long) termID << 32) | n;
+            n++;
         }
+        Arrays.sort(keys, 0, n);
+        Map<Integer,int[]> pos = new TreeMap<>();
+        for (int i = 0; i < n; ) {
+            int termID = (int) (keys[i] >>> 32);
+            int j = i;
+            while (j < n && (int) (keys[j] >>> 32) == termID) j++;
+            int[] p = new int[j - i];
+            for (int k = i; k < j; k++) p[k - i] = (int) keys[k];
+            pos.put(termID, p);
+            i = j;
+        }
+        Telemetry.tokensIndexed.add(tokens);
+        Telemetry.indexNanos.add(System.nanoTime() - start);
+        return pos;
     }
 
     // Save Index Files
@@ -134,17 +291,191 @@ public class Indexer {
         bw.close();
     }
 
+    // Binary copy of the inverted index that QueryProcessor can mmap at startup
+    private void saveBinaryIndex(String filename, IndexStats stats) throws IOException {
+        BinaryIndex.write(invertedIndex, forwardIndex.size(), computeMaxWeights(stats), filename, codec);
+    }
+
+    // Document lengths and norms, df/idf and N, so QueryProcessor can skip the forward index.
+    // For an appended segment, prior holds the statistics of the index so far:
+    // idf (and so the norms) then covers both, and documents start at its end.
+    private IndexStats computeStats(IndexStats prior) {
+        int numDocs = forwardIndex.size();
+        int maxTermId = 0, maxDocId = 0;
+        for (int t : invertedIndex.keySet()) maxTermId = Math.max(maxTermId, t);
+        for (int d : forwardIndex.keySet()) maxDocId = Math.max(maxDocId, d);
+        int docBase = 0;
+
+        int[] df = new int[maxTermId + 1];
+        for (Map.Entry<Integer,Map<Integer,Integer>> e : invertedIndex.entrySet())
+            df[e.getKey()] = e.getValue().size();
+        double[] idf;
+        if (prior == null) {
+            idf = IndexStats.idf(df, numDocs);
+        } else {
+            df = Arrays.copyOf(df, Math.max(df.length, prior.df.length));
+            int[] allDf = df.clone();
+            for (int t = 0; t < prior.df.length; t++) allDf[t] += prior.df[t];
+            idf = IndexStats.idf(allDf, numDocs + prior.numDocs);
+            docBase = prior.docEnd();
+        }
+
+        int[] docLength = new int[maxDocId + 1 - docBase];
+        int[] headLength = new int[maxDocId + 1 - docBase];
+        double[] docNorm = new double[maxDocId + 1 - docBase];
+        long totalLength = 0;
+        for (Map.Entry<Integer,Map<Integer,Integer>> e : forwardIndex.entrySet()) {
+            int len = IndexStats.length(e.getValue());
+            int d = e.getKey() - docBase;
+            docLength[d] = len;
+            headLength[d] = headLengths.getOrDefault(e.getKey(), 0);
+            docNorm[d] = IndexStats.norm(e.getValue(), idf);
+            totalLength += len;
+        }
+        return new IndexStats(docBase, numDocs, totalLength, docLength, headLength, docNorm, df, idf);
+    }
+
+    // Per-term max of (1+log tf)*idf/|d| -- the most one term can add to a
+    // cosine score -- so queries can skip postings that cannot reach the top k.
+    private Map<Integer,Double> computeMaxWeights(IndexStats stats) {
+        Map<Integer,Double> maxWeights = new HashMap<>();
+        for (Map.Entry<Integer,Map<Integer,Integer>> e : invertedIndex.entrySet()) {
+            double idfVal = stats.idf[e.getKey()], max = 0.0;
+            for (Map.Entry<Integer,Integer> p : e.getValue().entrySet()) {
+                double dn = stats.docNorm[p.getKey() - stats.docBase];
+                if (dn == 0.0) continue;
+                max = Math.max(max, (1.0 + Math.log(p.getValue())) * idfVal / dn);
+            }
+            maxWeights.put(e.getKey(), max);
+        }
+        return maxWeights;
+    }
+
+    private static String binaryName(String textFile) {
+        return withExtension(textFile, ".bin");
+    }
+
+    private static String headlineName(String textFile) {
+        return withExtension(textFile, ".headline.bin");
+    }
+
+    private static String positionsName(String textFile) {
+        return withExtension(textFile, ".pos");
+    }
+
+    private static String segmentsName(String textFile) {
+        return withExtension(textFile, ".segments");
+    }
+
+    // docID -> DOCNO text written by -append before the DOCNO store existed
+    private static String docIdsName(String textFile) {
+        return withExtension(textFile, ".docids");
+    }
+
+    private static String docNosName(String textFile) {
+        return withExtension(textFile, ".docnos");
+    }
+
+    private static String statsName(String textFile) {
+        return withExtension(textFile, ".stats");
+    }
+
+    private static String withExtension(String file, String ext) {
+        int dot = file.lastIndexOf('.');
+        return (dot > 0 ? file.substring(0, dot) : file) + ext;
+    }
+
+    private static String frozenDictionaryName(String dictionaryFile) {
+        return withExtension(dictionaryFile, ".dict");
+    }
+
+    // "term = id" text, plus the frozen TermDictionary QueryProcessor maps
     private void saveDictionary(String filename) throws IOException {
         BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
-        for (Map.Entry<String,Integer> e : termDict.entrySet()) {
-            bw.write(e.getKey() + " = " + e.getValue());
+        for (String term : terms) {
+            bw.write(term + " = " + termIds.get(term));
             bw.newLine();
         }
         bw.close();
+        TermDictionary.write(frozenDictionaryName(filename), terms, termIds::get);
+    }
+
+    // -append / -merge: indexes the documents of input (when not null) as a new
+    // segment of the index at invertedFile, then runs the merge policy, or with
+    // mergeAll merges every segment into one. Time depends on the new documents
+    // only: the base index, parser_output.txt and the text dumps stay as they are.
+    private void updateSegments(String input, String invertedFile, String dictionaryFile,
+                                boolean mergeAll) throws IOException {
+        long start = System.currentTimeMillis();
+        String prefix = withExtension(invertedFile, "");
+        Segments segments = Segments.read(segmentsName(invertedFile));
+        IndexStats base = IndexStats.read(statsName(invertedFile));
+
+        if (input != null) {
+            IndexStats prior = segments.combine(base);
+            loadDictionary(dictionaryFile);
+            appending = true;
+            // termIDs are handed out as documents are read, so one thread
+            threads = 1;
+            nextDocId = prior.docEnd();
+            // the DOCNOs so far; the store also covers documents without
+            // indexed terms, which the statistics end before
+            List<String> allDocNos = new ArrayList<>();
+            if (!new File(docNosName(invertedFile)).exists()) {
+                // an older build numbered documents by DOCNO suffix without
+                // recording it; a store of the new documents alone would hide
+                // every base DOCNO from QueryProcessor
+                throw new IOException(docNosName(invertedFile) + " is missing: the index predates the DOCNO"
+                        + " store, rebuild it before appending");
+            }
+            int docNoBase;
+            try (DocNoStore old = DocNoStore.open(docNosName(invertedFile))) {
+                docNoBase = old.docBase();
+                for (int d = docNoBase; d < old.docEnd(); d++) allDocNos.add(old.docNo(d));
+                nextDocId = Math.max(nextDocId, old.docEnd());
+            }
+            int firstDocId = nextDocId;
+            buildIndices(input);
+            if (forwardIndex.isEmpty()) {
+                System.out.println("No documents to append in " + input);
+            } else {
+                IndexStats stats = computeStats(prior);
+                String name = segments.newSegmentName(prefix);
+                stats.write(name + ".stats");
+                BinaryIndex.write(invertedIndex, forwardIndex.size(), computeMaxWeights(stats), name + ".bin", codec);
+                BinaryIndex.write(headlineIndex, forwardIndex.size(), Collections.emptyMap(), name + ".headline.bin", codec);
+                // the dictionaries and DOCNOs are written aside and published with the segment
+                Files.copy(Paths.get(dictionaryFile), Paths.get(dictionaryFile + ".new"),
+                        StandardCopyOption.REPLACE_EXISTING);
+                try (BufferedWriter bw = new BufferedWriter(new FileWriter(dictionaryFile + ".new", true))) {
+                    for (String term : newTerms) {
+                        bw.write(term + " = " + termIds.get(term));
+                        bw.newLine();
+                    }
+                }
+                TermDictionary.write(frozenDictionaryName(dictionaryFile) + ".new", terms, termIds::get);
+                while (docNoBase + allDocNos.size() < firstDocId) allDocNos.add(null);
+                allDocNos.addAll(docNos);
+                DocNoStore.write(docNosName(invertedFile) + ".new", docNoBase, allDocNos);
+                // the segment only becomes visible here
+                segments.add(name, forwardIndex.size(),
+                        dictionaryFile, frozenDictionaryName(dictionaryFile), docNosName(invertedFile));
+                System.out.println("Appended " + forwardIndex.size() + " documents (docIDs " + firstDocId + "-"
+                        + (nextDocId - 1) + ", " + newTerms.size() + " new terms) as " + name + " in "
+                        + (System.currentTimeMillis() - start) / 1000.0 + " seconds.");
+            }
+        }
+
+        long t = System.currentTimeMillis();
+        int merges = mergeAll ? (segments.mergeAll(prefix, base) ? 1 : 0) : segments.maybeMerge(prefix, base);
+        if (merges > 0) {
+            System.out.println(merges + " segment merge(s) in " + (System.currentTimeMillis() - t) / 1000.0 + " seconds.");
+        }
+        System.out.println("Segments: " + segments.describe());
     }
 
     // Interactive Search
-    private void interactiveSearch() throws IOException {
+    private void interactiveSearch(String binaryFile) throws IOException {
         Scanner sc = new Scanner(System.in);
         System.out.print("\nEnter a word to search: ");
         String word = sc.nextLine().trim().toLowerCase();
@@ -154,13 +485,23 @@ public class Indexer {
             return;
         }
         String stem = stemmer.stripAffixes(word);
-        Integer id = termDict.get(stem);
-        if (id == null) {
+        int id = termIds.get(stem);
+        if (id < 0) {
             System.out.println("Word not found in dictionary.");
             sc.close();
             return;
         }
         Map<Integer,Integer> postings = invertedIndex.get(id);
+        if (spimi != null) {
+            // in SPIMI mode the postings only exist on disk
+            try (BinaryIndex bin = BinaryIndex.open(binaryFile)) {
+                PostingList pl = bin.postings(id);
+                if (pl != null) {
+                    postings = new TreeMap<>();
+                    for (int i = 0; i < pl.size; i++) postings.put(pl.docIds[i], pl.tfs[i]);
+                }
+            }
+        }
         if (postings == null) {
             System.out.println("No postings found for " + stem);
             sc.close();
@@ -177,28 +518,134 @@ public class Indexer {
     // Main
     public static void main(String[] args) throws Exception {
         if (args.length < 4) {
-            System.out.println("Usage: java Indexer <parser_output.txt> <forward_index> <inverted_index> <dictionary>");
+            System.out.println("Usage: java Indexer <parser_output.txt> <forward_index> <inverted_index> <dictionary> [-threads <n>] [-spimi <MB>] [-positions] [-prewarm <text file>] [-append <file|dir>] [-merge] [-codec <name>] [-metrics <seconds>] [-metricsjson]");
+            System.out.println("  -spimi <MB>: index in one pass with at most MB of in-memory postings, merging on-disk runs");
+            System.out.println("  -positions: also write term positions (<inverted_index>.pos) for phrase and proximity queries");
+            System.out.println("  -prewarm <text file>: seed the stem cache with the words of a text file, e.g. a collection file");
+            System.out.println("  -append <file|dir>: add new documents to the existing index as a segment (no full rebuild)");
+            System.out.println("  -merge: merge all appended segments into one");
+            System.out.println("  -codec <name>: postings block encoding in the binary index, pfor (default) | varint");
+            System.out.println("  -metrics <seconds>: expose counters over JMX and dump them to stderr every n seconds (0: at the end only)");
+            System.out.println("  -metricsjson: dump the counters as JSON instead of text");
             return;
         }
 
         Indexer idx = new Indexer();
+        long spimiBudgetMB = 0;
+        String appendInput = null;
+        String prewarmFile = null;
+        boolean mergeAll = false;
+        int metricsSeconds = -1;
+        boolean metricsJson = false;
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                idx.threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-spimi") && i + 1 < args.length) {
+                spimiBudgetMB = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-positions")) {
+                idx.positions = true;
+            } else if (args[i].equals("-append") && i + 1 < args.length) {
+                appendInput = args[++i];
+            } else if (args[i].equals("-merge")) {
+                mergeAll = true;
+            } else if (args[i].equals("-codec") && i + 1 < args.length) {
+                try {
+                    idx.codec = PostingsCodec.forName(args[++i].toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    return;
+                }
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                metricsSeconds = Math.max(0, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-metricsjson")) {
+                metricsJson = true;
+            } else if (args[i].equals("-prewarm") && i + 1 < args.length) {
+                prewarmFile = args[++i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
         idx.loadStopwords("stopwordlist.txt");
+        if (prewarmFile != null) {
+            // after the stopwords, which are never looked up
+            idx.stems.prewarm(prewarmFile, false, idx.stopwords);
+        }
+        Telemetry.register(idx.stems);
+        if (metricsSeconds >= 0) Telemetry.start(metricsSeconds, metricsJson);
+
+        if (appendInput != null || mergeAll) {
+            if (spimiBudgetMB > 0 || idx.positions) {
+                System.out.println("-spimi and -positions only apply to a full build; ignored.");
+            }
+            try {
+                idx.updateSegments(appendInput, args[2], args[3], mergeAll);
+            } catch (IOException e) {
+                System.out.println("Update failed: " + e.getMessage());
+                return;
+            }
+            if (metricsSeconds >= 0) Telemetry.dump(metricsJson);
+            return;
+        }
 
         long start = System.currentTimeMillis();
         idx.loadDictionaryFromParser(args[0]);
+        if (spimiBudgetMB > 0) {
+            idx.spimi = new SpimiIndexer(spimiBudgetMB << 20, args[1], idx.codec);
+            if (idx.positions) {
+                System.out.println("-positions is not supported with -spimi; building without positions.");
+                idx.positions = false;
+            }
+        }
         idx.buildIndices("./ft911");
+        // a full build covers everything, so earlier appended segments go
+        Segments.read(segmentsName(args[2])).deleteAll();
+        new File(docIdsName(args[2])).delete();
+        DocNoStore.write(docNosName(args[2]), 1, idx.docNos);
 
-        idx.saveIndex(idx.forwardIndex, args[1]);
-        idx.saveIndex(idx.invertedIndex, args[2]);
+        if (idx.spimi != null) {
+            idx.spimi.finish(args[2], binaryName(args[2]), statsName(args[2]));
+            // no HEADLINE postings in this mode; don't leave a stale file from an earlier build
+            new File(headlineName(args[2])).delete();
+            System.out.println("SPIMI: " + idx.spimi.postingCount() + " postings merged from "
+                    + idx.spimi.runCount() + " runs.");
+        } else {
+            idx.saveIndex(idx.forwardIndex, args[1]);
+            idx.saveIndex(idx.invertedIndex, args[2]);
+            IndexStats stats = idx.computeStats(null);
+            stats.write(statsName(args[2]));
+            idx.saveBinaryIndex(binaryName(args[2]), stats);
+            BinaryIndex.write(idx.headlineIndex, idx.forwardIndex.size(),
+                    Collections.emptyMap(), headlineName(args[2]), idx.codec);
+        }
+        System.out.println("TEXT indexing: " + idx.textNanos.sum() / 1_000_000 / 1000.0 + " seconds of thread time "
+                + (idx.positions ? "with" : "without") + " positions");
+        if (idx.positions) {
+            long t = System.currentTimeMillis();
+            long size = PositionIndex.write(idx.positionIndex, positionsName(args[2]));
+            System.out.println("Positions: " + positionsName(args[2]) + " (" + size / 1024 + " KB, "
+                    + new File(binaryName(args[2])).length() / 1024 + " KB binary postings, written in "
+                    + (System.currentTimeMillis() - t) / 1000.0 + " seconds)");
+        } else {
+            // phrase queries would read positions that no longer match the postings
+            new File(positionsName(args[2])).delete();
+        }
         idx.saveDictionary(args[3]);
 
         long end = System.currentTimeMillis();
         System.out.println("\n✅ Indexing complete in " + (end - start)/1000.0 + " seconds.");
-        System.out.println("Terms: " + idx.termDict.size() + " | Documents: " + idx.docDict.size());
+        System.out.println("Terms: " + idx.terms.size() + " | Documents: " + idx.docNos.size());
         System.out.println("Forward index: " + args[1]);
-        System.out.println("Inverted index: " + args[2]);
-        System.out.println("Dictionary: " + args[3]);
+        System.out.println("Inverted index: " + args[2] + " (binary: " + binaryName(args[2]) + ", "
+                + new File(binaryName(args[2])).length() / 1024 + " KB, " + idx.codec.name() + ")");
+        System.out.println("Index stats: " + statsName(args[2]));
+        System.out.println("Dictionary: " + args[3] + " (frozen: " + frozenDictionaryName(args[3]) + ", "
+                + new File(frozenDictionaryName(args[3])).length() / 1024 + " KB)");
+        System.out.println("DOCNOs: " + docNosName(args[2]) + " ("
+                + new File(docNosName(args[2])).length() / 1024 + " KB)");
+        System.out.println(idx.stems.summary());
+        if (metricsSeconds >= 0) Telemetry.dump(metricsJson);
 
-        idx.interactiveSearch();
+        idx.interactiveSearch(binaryName(args[2]));
     }
 }
@@ -1,135 +1,308 @@
+import java.io.*;
 
-
+// Porter stemmer (M.F. Porter, "An algorithm for suffix stripping", 1980),
+// following the reference implementation's full step set.
+//
+// stem() works in place on the caller's char buffer and allocates nothing.
+// An instance keeps per-word state, so each thread needs its own.
 public class Porter {
 
+    private char[] b;
+    private int j, k;
+
+    // Stems w[0..len) in place and returns the stem's length. Letters are
+    // lowercased and anything outside a-z is dropped first.
+    public int stem(char[] w, int len) {
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            char c = w[i];
+            if (c >= 'A' && c <= 'Z') c = (char) (c + ('a' - 'A'));
+            if (c >= 'a' && c <= 'z') w[n++] = c;
+        }
+        if (n <= 2) return n;
+
+        b = w;
+        k = n - 1;
+        step1();
+        step2();
+        step3();
+        step4();
+        step5();
+        step6();
+        b = null;
+        return k + 1;
+    }
+
     public String stripAffixes(String word) {
         if (word == null || word.length() == 0)
             return word;
-        word = clean(word.toLowerCase());
-        if (word.length() <= 2)
-            return word;
-        word = step1(word);
-        word = step2(word);
-        word = step3(word);
-        word = step4(word);
-        word = step5(word);
-        return word;
+        char[] w = word.toCharArray();
+        return new String(w, 0, stem(w, w.length));
     }
 
-    private String clean(String s) {
-        return s.replaceAll("[^a-z]", "");
+    // is b[i] a consonant?
+    private boolean cons(int i) {
+        switch (b[i]) {
+            case 'a': case 'e': case 'i': case 'o': case 'u': return false;
+            case 'y': return i == 0 || !cons(i - 1);
+            default: return true;
+        }
     }
 
-    private boolean vowel(char c) {
-        return "aeiou".indexOf(c) >= 0;
+    // number of consonant sequences between 0 and j: <c>(vc)^m<v>
+    private int m() {
+        int n = 0, i = 0;
+        while (true) {
+            if (i > j) return n;
+            if (!cons(i)) break;
+            i++;
+        }
+        i++;
+        while (true) {
+            while (true) {
+                if (i > j) return n;
+                if (cons(i)) break;
+                i++;
+            }
+            i++;
+            n++;
+            while (true) {
+                if (i > j) return n;
+                if (!cons(i)) break;
+                i++;
+            }
+            i++;
+        }
     }
 
-    private boolean containsVowel(String s) {
-        for (char c : s.toCharArray())
-            if (vowel(c))
-                return true;
+    private boolean vowelInStem() {
+        for (int i = 0; i <= j; i++) if (!cons(i)) return true;
         return false;
     }
 
-    private boolean endsWithDouble(String s) {
-        int len = s.length();
-        return len >= 2 && s.charAt(len - 1) == s.charAt(len - 2);
-    }
-
-    private String step1(String s) {
-        if (s.endsWith("sses"))
-            return s.substring(0, s.length() - 2);
-        if (s.endsWith("ies"))
-            return s.substring(0, s.length() - 2);
-        if (s.endsWith("ss"))
-            return s;
-        if (s.endsWith("s"))
-            return s.substring(0, s.length() - 1);
-        return s;
-    }
-
-    private String step2(String s) {
-        if (s.endsWith("eed")) {
-            String stem = s.substring(0, s.length() - 3);
-            if (measure(stem) > 0)
-                return stem + "ee";
-        } else if ((s.endsWith("ed") && containsVowel(s.substring(0, s.length() - 2))) ||
-                   (s.endsWith("ing") && containsVowel(s.substring(0, s.length() - 3)))) {
-            if (s.endsWith("ed"))
-                s = s.substring(0, s.length() - 2);
-            else
-                s = s.substring(0, s.length() - 3);
-
-            if (s.endsWith("at") || s.endsWith("bl") || s.endsWith("iz"))
-                s = s + "e";
-            else if (endsWithDouble(s) && !s.endsWith("ll") && !s.endsWith("ss") && !s.endsWith("zz"))
-                s = s.substring(0, s.length() - 1);
-            else if (measure(s) == 1 && cvc(s))
-                s = s + "e";
+    private boolean doubleC(int i) {
+        if (i < 1 || b[i] != b[i - 1]) return false;
+        return cons(i);
+    }
+
+    // consonant-vowel-consonant ending at i, last consonant not w, x or y
+    private boolean cvc(int i) {
+        if (i < 2 || !cons(i) || cons(i - 1) || !cons(i - 2)) return false;
+        char ch = b[i];
+        return ch != 'w' && ch != 'x' && ch != 'y';
+    }
+
+    private boolean ends(String s) {
+        int l = s.length();
+        int o = k - l + 1;
+        if (o < 0) return false;
+        for (int i = 0; i < l; i++) if (b[o + i] != s.charAt(i)) return false;
+        j = k - l;
+        return true;
+    }
+
+    // replaces b[j+1..k] with s; never longer than the suffix it replaces
+    private void setTo(String s) {
+        int l = s.length();
+        int o = j + 1;
+        for (int i = 0; i < l; i++) b[o + i] = s.charAt(i);
+        k = j + l;
+    }
+
+    private void r(String s) {
+        if (m() > 0) setTo(s);
+    }
+
+    // plurals and -ed / -ing
+    private void step1() {
+        if (b[k] == 's') {
+            if (ends("sses")) k -= 2;
+            else if (ends("ies")) setTo("i");
+            else if (b[k - 1] != 's') k--;
         }
-        return s;
-    }
-
-    private String step3(String s) {
-        if (s.endsWith("y") && containsVowel(s.substring(0, s.length() - 1)))
-            s = s.substring(0, s.length() - 1) + "i";
-        return s;
-    }
-
-    private String step4(String s) {
-        String[][] suffixes = {
-                {"ational", "ate"}, {"tional", "tion"}, {"enci", "ence"}, {"anci", "ance"},
-                {"izer", "ize"}, {"abli", "able"}, {"alli", "al"}, {"entli", "ent"},
-                {"eli", "e"}, {"ousli", "ous"}, {"ization", "ize"}, {"ation", "ate"},
-                {"ator", "ate"}, {"alism", "al"}, {"iveness", "ive"}, {"fulness", "ful"},
-                {"ousness", "ous"}, {"aliti", "al"}, {"iviti", "ive"}, {"biliti", "ble"}
-        };
-        for (String[] suf : suffixes) {
-            if (s.endsWith(suf[0])) {
-                String stem = s.substring(0, s.length() - suf[0].length());
-                if (measure(stem) > 0)
-                    return stem + suf[1];
-            }
+        if (ends("eed")) {
+            if (m() > 0) k--;
+        } else if ((ends("ed") || ends("ing")) && vowelInStem()) {
+            k = j;
+            if (ends("at")) setTo("ate");
+            else if (ends("bl")) setTo("ble");
+            else if (ends("iz")) setTo("ize");
+            else if (doubleC(k)) {
+                k--;
+                char ch = b[k];
+                if (ch == 'l' || ch == 's' || ch == 'z') k++;
+            } else if (m() == 1 && cvc(k)) setTo("e");
         }
-        return s;
-    }
-
-    private String step5(String s) {
-        String[][] suffixes = {
-                {"icate", "ic"}, {"ative", ""}, {"alize", "al"}, {"iciti", "ic"},
-                {"ical", "ic"}, {"ful", ""}, {"ness", ""}
-        };
-        for (String[] suf : suffixes) {
-            if (s.endsWith(suf[0])) {
-                String stem = s.substring(0, s.length() - suf[0].length());
-                if (measure(stem) > 0)
-                    return stem + suf[1];
-            }
+    }
+
+    // terminal y -> i when there is another vowel in the stem
+    private void step2() {
+        if (ends("y") && vowelInStem()) b[k] = 'i';
+    }
+
+    // double suffixes -> single ones
+    private void step3() {
+        if (k == 0) return;
+        switch (b[k - 1]) {
+            case 'a':
+                if (ends("ational")) { r("ate"); break; }
+                if (ends("tional")) { r("tion"); break; }
+                break;
+            case 'c':
+                if (ends("enci")) { r("ence"); break; }
+                if (ends("anci")) { r("ance"); break; }
+                break;
+            case 'e':
+                if (ends("izer")) { r("ize"); break; }
+                break;
+            case 'l':
+                if (ends("bli")) { r("ble"); break; }
+                if (ends("alli")) { r("al"); break; }
+                if (ends("entli")) { r("ent"); break; }
+                if (ends("eli")) { r("e"); break; }
+                if (ends("ousli")) { r("ous"); break; }
+                break;
+            case 'o':
+                if (ends("ization")) { r("ize"); break; }
+                if (ends("ation")) { r("ate"); break; }
+                if (ends("ator")) { r("ate"); break; }
+                break;
+            case 's':
+                if (ends("alism")) { r("al"); break; }
+                if (ends("iveness")) { r("ive"); break; }
+                if (ends("fulness")) { r("ful"); break; }
+                if (ends("ousness")) { r("ous"); break; }
+                break;
+            case 't':
+                if (ends("aliti")) { r("al"); break; }
+                if (ends("iviti")) { r("ive"); break; }
+                if (ends("biliti")) { r("ble"); break; }
+                break;
+            case 'g':
+                if (ends("logi")) { r("log"); break; }
+                break;
         }
-        return s;
-    }
-
-    private int measure(String stem) {
-        boolean vowelSeen = false;
-        int count = 0;
-        for (int i = 0; i < stem.length(); i++) {
-            char c = stem.charAt(i);
-            if (vowel(c)) {
-                vowelSeen = true;
-            } else if (vowelSeen) {
-                count++;
-                vowelSeen = false;
-            }
+    }
+
+    // -ic-, -full, -ness etc.
+    private void step4() {
+        switch (b[k]) {
+            case 'e':
+                if (ends("icate")) { r("ic"); break; }
+                if (ends("ative")) { r(""); break; }
+                if (ends("alize")) { r("al"); break; }
+                break;
+            case 'i':
+                if (ends("iciti")) { r("ic"); break; }
+                break;
+            case 'l':
+                if (ends("ical")) { r("ic"); break; }
+                if (ends("ful")) { r(""); break; }
+                break;
+            case 's':
+                if (ends("ness")) { r(""); break; }
+                break;
+        }
+    }
+
+    // -ant, -ence etc. in context <c>vcvc<v>
+    private void step5() {
+        if (k == 0) return;
+        switch (b[k - 1]) {
+            case 'a':
+                if (ends("al")) break;
+                return;
+            case 'c':
+                if (ends("ance")) break;
+                if (ends("ence")) break;
+                return;
+            case 'e':
+                if (ends("er")) break;
+                return;
+            case 'i':
+                if (ends("ic")) break;
+                return;
+            case 'l':
+                if (ends("able")) break;
+                if (ends("ible")) break;
+                return;
+            case 'n':
+                if (ends("ant")) break;
+                if (ends("ement")) break;
+                if (ends("ment")) break;
+                if (ends("ent")) break;
+                return;
+            case 'o':
+                if (ends("ion") && j >= 0 && (b[j] == 's' || b[j] == 't')) break;
+                if (ends("ou")) break;
+                return;
+            case 's':
+                if (ends("ism")) break;
+                return;
+            case 't':
+                if (ends("ate")) break;
+                if (ends("iti")) break;
+                return;
+            case 'u':
+                if (ends("ous")) break;
+                return;
+            case 'v':
+                if (ends("ive")) break;
+                return;
+            case 'z':
+                if (ends("ize")) break;
+                return;
+            default:
+                return;
+        }
+        if (m() > 1) k = j;
+    }
+
+    // final -e and -ll
+    private void step6() {
+        j = k;
+        if (b[k] == 'e') {
+            int a = m();
+            if (a > 1 || (a == 1 && !cvc(k - 1))) k--;
         }
-        return count;
+        if (b[k] == 'l' && doubleC(k) && m() > 1) k--;
     }
 
-    private boolean cvc(String s) {
-        if (s.length() < 3) return false;
-        char c1 = s.charAt(s.length() - 1);
-        char c2 = s.charAt(s.length() - 2);
-        char c3 = s.charAt(s.length() - 3);
-        return !vowel(c1) && vowel(c2) && !vowel(c3)
-                && (c1 != 'w' && c1 != 'x' && c1 != 'y');
+    // Conformance check against a vocabulary and its expected stems, one word
+    // per line: by default the bundled porter_voc.txt / porter_output.txt
+    // (the worked examples of every step from Porter's paper, plus a few
+    // words for the bli/logi rules of the reference implementation), or the
+    // full voc.txt / output.txt of the Porter stemmer distribution. Exits
+    // with status 1 on any mismatch.
+    public static void main(String[] args) throws IOException {
+        String vocFile = "porter_voc.txt", expectedFile = "porter_output.txt";
+        if (args.length == 2) {
+            vocFile = args[0];
+            expectedFile = args[1];
+        } else if (args.length != 0) {
+            System.out.println("Usage: java Porter [<voc.txt> <output.txt>]");
+            return;
+        }
+        Porter p = new Porter();
+        BufferedReader voc = new BufferedReader(new FileReader(vocFile));
+        BufferedReader expected = new BufferedReader(new FileReader(expectedFile));
+        String word, want = null;
+        int total = 0, failed = 0;
+        while ((word = voc.readLine()) != null && (want = expected.readLine()) != null) {
+            word = word.trim();
+            want = want.trim();
+            total++;
+            String got = p.stripAffixes(word);
+            if (!got.equals(want)) {
+                if (failed < 20) System.out.println(word + ": expected " + want + ", got " + got);
+                failed++;
+            }
+        }
+        boolean uneven = word != null || expected.readLine() != null;
+        voc.close();
+        expected.close();
+        if (uneven) System.out.println(vocFile + " and " + expectedFile + " differ in length");
+        System.out.println(total + " words, " + failed + " mismatches");
+        if (failed > 0 || uneven) System.exit(1);
     }
 }
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Positional postings, stored next to the binary inverted index.
+//
+// Layout (big-endian):
+//   header      MAGIC, VERSION, numTerms, termTableOffset (long)
+//   positions   per term, for each of its postings in docId order: tf
+//               varint(position gap) values, first gap from 0
+//   term table  numTerms entries sorted by termId: termId, offset (long)
+//
+// Positions count the indexed tokens of a document's TEXT (stopwords and
+// words outside the dictionary are not counted), so a phrase matches when
+// its query terms sit on consecutive positions. The tf of each posting comes
+// from the inverted index, so it is not repeated here.
+class PositionIndex implements Closeable {
+
+    static final int MAGIC = 0x49525031; // "IRP1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    static final int ENTRY_SIZE = 12;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final int numTerms;
+    private final int termTable;
+
+    private PositionIndex(FileChannel channel, MappedByteBuffer buf) throws IOException {
+        this.channel = channel;
+        this.buf = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("Not a positional index (bad magic/version)");
+        }
+        this.numTerms = buf.getInt(8);
+        this.termTable = (int) buf.getLong(12);
+    }
+
+    static PositionIndex open(String filename) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        return new PositionIndex(ch, mb);
+    }
+
+    // Reader for one term's positions; postings must be the term's (TEXT)
+    // postings list. Null if the term has no positions.
+    Cursor cursor(int termId, PostingList postings) {
+        int lo = 0, hi = numTerms - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int t = buf.getInt(termTable + mid * ENTRY_SIZE);
+            if (t < termId) lo = mid + 1;
+            else if (t > termId) hi = mid - 1;
+            else return new Cursor(postings, (int) buf.getLong(termTable + mid * ENTRY_SIZE + 4));
+        }
+        return null;
+    }
+
+    // Decodes positions posting by posting; postings can be skipped but not revisited.
+    class Cursor {
+        private final PostingList postings;
+        private int index = 0;
+        private int pos;
+
+        private Cursor(PostingList postings, int offset) {
+            this.postings = postings;
+            this.pos = offset;
+        }
+
+        // Positions of posting 'target' (>= every earlier target) into out,
+        // which must hold its tf; returns the count.
+        int read(int target, int[] out) {
+            while (index < target) {
+                // skip the tf varints of a posting we don't need
+                for (int n = postings.tfs[index++]; n > 0; ) {
+                    if ((buf.get(pos++) & 0x80) == 0) n--;
+                }
+            }
+            int tf = postings.tfs[index++];
+            int p = 0;
+            for (int n = 0; n < tf; n++) {
+                int v = 0, shift = 0, b;
+                do {
+                    b = buf.get(pos++);
+                    v |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                p += v;
+                out[n] = p;
+            }
+            return tf;
+        }
+    }
+
+    // Is there a start p with p + i in positions i for every term i?
+    // Leapfrogs: a miss on term i moves the start straight to the first
+    // candidate that could line up with term i's next position.
+    static boolean phrase(int[][] pos, int[] len) {
+        int n = pos.length;
+        int[] at = new int[n];
+        int s = 0;
+        while (s < len[0]) {
+            int p = pos[0][s];
+            int i = 1;
+            for (; i < n; i++) {
+                at[i] = PostingList.gallop(pos[i], at[i], len[i], p + i);
+                if (at[i] == len[i]) return false;
+                if (pos[i][at[i]] != p + i) break;
+            }
+            if (i == n) return true;
+            s = PostingList.gallop(pos[0], s + 1, len[0], pos[i][at[i]] - i);
+        }
+        return false;
+    }
+
+    // Do all terms occur, in any order, within some window of w consecutive
+    // positions? Keeps one cursor per term; while the span is too wide the
+    // lowest cursor gallops up to the first position that could still fit.
+    static boolean window(int[][] pos, int[] len, int w) {
+        int n = pos.length;
+        int[] at = new int[n];
+        while (true) {
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, lowest = 0;
+            for (int i = 0; i < n; i++) {
+                int v = pos[i][at[i]];
+                if (v < min) {
+                    min = v;
+                    lowest = i;
+                }
+                max = Math.max(max, v);
+            }
+            if (max - min < w) return true;
+            at[lowest] = PostingList.gallop(pos[lowest], at[lowest] + 1, len[lowest], max - w + 1);
+            if (at[lowest] == len[lowest]) return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // WRITER
+
+    // termId -> docId -> positions, in any order. Returns the file size in bytes.
+    static long write(Map<Integer, Map<Integer, int[]>> positions, String filename) throws IOException {
+        try (FileChannel out = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bb = ByteBuffer.allocate(1 << 16);
+            long position = HEADER_SIZE;
+            out.position(HEADER_SIZE);
+
+            int numTerms = positions.size();
+            int[] termIds = sortedKeys(positions);
+            long[] offsets = new long[numTerms];
+            for (int t = 0; t < numTerms; t++) {
+                offsets[t] = position;
+                Map<Integer, int[]> docs = positions.get(termIds[t]);
+                // same order as the term's postings in the binary index
+                for (int docId : sortedKeys(docs)) {
+                    int prev = 0;
+                    for (int v : docs.get(docId)) {
+                        if (bb.remaining() < 5) flush(out, bb);
+                        int gap = v - prev;
+                        prev = v;
+                        while ((gap & ~0x7F) != 0) {
+                            bb.put((byte) ((gap & 0x7F) | 0x80));
+                            gap >>>= 7;
+                            position++;
+                        }
+                        bb.put((byte) gap);
+                        position++;
+                    }
+                }
+            }
+            flush(out, bb);
+
+            long termTable = position;
+            for (int i = 0; i < numTerms; i++) {
+                if (bb.remaining() < ENTRY_SIZE) flush(out, bb);
+                bb.putInt(termIds[i]).putLong(offsets[i]);
+            }
+            flush(out, bb);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numTerms).putLong(termTable);
+            header.flip();
+            out.write(header, 0);
+            return out.size();
+        }
+    }
+
+    private static int[] sortedKeys(Map<Integer, ?> map) {
+        int[] keys = new int[map.size()];
+        int i = 0;
+        for (int k : map.keySet()) keys[i++] = k;
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static void flush(FileChannel out, ByteBuffer bb) throws IOException {
+        bb.flip();
+        while (bb.hasRemaining()) out.write(bb);
+        bb.clear();
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+// Postings for one term as parallel primitive arrays, docIds ascending.
+class PostingList {
+
+    final int[] docIds;
+    final int[] tfs;
+    final int size;
+
+    PostingList(int[] docIds, int[] tfs, int size) {
+        this.docIds = docIds;
+        this.tfs = tfs;
+        this.size = size;
+    }
+
+    // First index >= from whose docId is >= target (size if none).
+    int advance(int from, int target) {
+        return gallop(docIds, from, size, target);
+    }
+
+    // First index i in [from, size) with a[i] >= target (size if none) in a
+    // sorted array, found by galloping forward and then binary searching the
+    // bracketed range: O(log d) for a target d entries ahead.
+    static int gallop(int[] a, int from, int size, int target) {
+        if (from >= size || a[from] >= target) return from;
+        int lo = from, step = 1, hi = from + 1;
+        while (hi < size && a[hi] < target) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        if (hi > size) hi = size;
+        // a[lo] < target, a[hi] >= target (or hi == size)
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < target) lo = mid;
+            else hi = mid;
+        }
+        return hi;
+    }
+
+    // Growable builder used while parsing/decoding a list of unknown length.
+    static class Builder {
+        private int[] docIds;
+        private int[] tfs;
+        private int size = 0;
+
+        Builder(int expected) {
+            int n = Math.max(expected, 4);
+            docIds = new int[n];
+            tfs = new int[n];
+        }
+
+        void add(int docId, int tf) {
+            if (size == docIds.length) {
+                docIds = Arrays.copyOf(docIds, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            docIds[size] = docId;
+            tfs[size] = tf;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        PostingList build() {
+            return new PostingList(docIds, tfs, size);
+        }
+    }
+}
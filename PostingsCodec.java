@@ -0,0 +1,200 @@
+import java.nio.ByteBuffer;
+
+// Encoding of one block of non-negative ints (docId gaps or tf - 1) in the
+// binary index. A block holds at most BinaryIndex.BLOCK_SIZE values and its
+// length is known to the reader, so codecs store no count of their own.
+interface PostingsCodec {
+
+    String name();
+
+    // stored in the index header
+    int id();
+
+    // appends values[0 .. n) to out, which has room for maxBytes(n)
+    void encode(int[] values, int n, ByteBuffer out);
+
+    // n values from the block at pos into out[off ..]; returns the position after the block
+    int decode(ByteBuffer in, int pos, int[] out, int off, int n);
+
+    // worst-case encoded size of n values
+    int maxBytes(int n);
+
+    PostingsCodec VARINT = new Varint();
+    PostingsCodec PFOR = new PFor();
+
+    static PostingsCodec forName(String name) {
+        switch (name) {
+            case "varint":
+                return VARINT;
+            case "pfor":
+                return PFOR;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name + " (varint | pfor)");
+        }
+    }
+
+    static PostingsCodec forId(int id) {
+        if (id == VARINT.id()) return VARINT;
+        if (id == PFOR.id()) return PFOR;
+        throw new IllegalArgumentException("Unknown codec id: " + id);
+    }
+
+    // 7 bits per byte, high bit set on all but the last byte of a value.
+    class Varint implements PostingsCodec {
+
+        @Override
+        public String name() {
+            return "varint";
+        }
+
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public void encode(int[] values, int n, ByteBuffer out) {
+            for (int i = 0; i < n; i++) put(out, values[i]);
+        }
+
+        static void put(ByteBuffer out, int v) {
+            while ((v & ~0x7F) != 0) {
+                out.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.put((byte) v);
+        }
+
+        @Override
+        public int decode(ByteBuffer in, int pos, int[] out, int off, int n) {
+            for (int i = 0; i < n; i++) {
+                int v = 0, shift = 0, b;
+                do {
+                    b = in.get(pos++);
+                    v |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                out[off + i] = v;
+            }
+            return pos;
+        }
+
+        @Override
+        public int maxBytes(int n) {
+            return 5 * n;
+        }
+    }
+
+    // Patched frame of reference (PForDelta over the gaps): every value is
+    // bit-packed at one width b, chosen so that the few values needing more
+    // bits cost less as exceptions than widening the whole block would.
+    // Unpacking is a branch-free shift-and-mask loop per block.
+    //
+    //   byte b, byte exception count
+    //   n values, low b bits each, packed little-endian
+    //   per exception: byte index, varint(value >>> b)
+    class PFor implements PostingsCodec {
+
+        @Override
+        public String name() {
+            return "pfor";
+        }
+
+        @Override
+        public int id() {
+            return 2;
+        }
+
+        @Override
+        public void encode(int[] values, int n, ByteBuffer out) {
+            // values needing exactly k bits
+            int[] counts = new int[33];
+            for (int i = 0; i < n; i++) counts[32 - Integer.numberOfLeadingZeros(values[i])]++;
+
+            int maxBits = 32;
+            while (maxBits > 0 && counts[maxBits] == 0) maxBits--;
+            // cost of width b: packed bytes + ~3 bytes per value wider than b
+            int best = maxBits, bestCost = (n * maxBits + 7) >>> 3;
+            int exceptions = 0;
+            for (int b = maxBits - 1; b >= 0; b--) {
+                exceptions += counts[b + 1];
+                int cost = ((n * b + 7) >>> 3) + 3 * exceptions;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = b;
+                }
+            }
+            int b = best;
+
+            int numExceptions = 0;
+            for (int i = 0; i < n; i++) {
+                if (b < 32 && values[i] >>> b != 0) numExceptions++;
+            }
+            out.put((byte) b).put((byte) numExceptions);
+
+            long mask = (1L << b) - 1;
+            long acc = 0;
+            int bits = 0;
+            for (int i = 0; i < n; i++) {
+                acc |= (values[i] & mask) << bits;
+                bits += b;
+                while (bits >= 8) {
+                    out.put((byte) acc);
+                    acc >>>= 8;
+                    bits -= 8;
+                }
+            }
+            if (bits > 0) out.put((byte) acc);
+
+            if (numExceptions > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (values[i] >>> b != 0) {
+                        out.put((byte) i);
+                        Varint.put(out, values[i] >>> b);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int decode(ByteBuffer in, int pos, int[] out, int off, int n) {
+            int b = in.get(pos);
+            int numExceptions = in.get(pos + 1) & 0xFF;
+            pos += 2;
+
+            if (b == 0) {
+                for (int i = 0; i < n; i++) out[off + i] = 0;
+            } else {
+                long mask = (1L << b) - 1;
+                long acc = 0;
+                int bits = 0;
+                for (int i = 0; i < n; i++) {
+                    while (bits < b) {
+                        acc |= (long) (in.get(pos++) & 0xFF) << bits;
+                        bits += 8;
+                    }
+                    out[off + i] = (int) (acc & mask);
+                    acc >>>= b;
+                    bits -= b;
+                }
+            }
+
+            for (int e = 0; e < numExceptions; e++) {
+                int i = in.get(pos++) & 0xFF;
+                int v = 0, shift = 0, x;
+                do {
+                    x = in.get(pos++);
+                    v |= (x & 0x7F) << shift;
+                    shift += 7;
+                } while ((x & 0x80) != 0);
+                out[off + i] |= v << b;
+            }
+            return pos;
+        }
+
+        @Override
+        public int maxBytes(int n) {
+            return 2 + 4 * n + 6 * n;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.util.List;
+
+// Cursor over one term's postings in docId order, for document-at-a-time
+// evaluation. Starts on the first posting; docId() is NO_MORE_DOCS once the
+// list is exhausted. advance() gallops, so probing a long list for a few
+// candidate documents costs O(log gap) per probe rather than a linear scan.
+//
+// OfList walks a decoded PostingList; OfBlocks decodes a block of the binary
+// index only when the iteration reaches it, jumping over blocks by their
+// skip data on advance(). Both weigh a block's postings only if one of them
+// is scored, so postings that are skipped are never weighed. OfChain walks a
+// term's postings in the base index and each appended segment one after the
+// other. OfUnion moves several iterators as one, for a wildcard that is a
+// single conjunct of an -and query.
+abstract class PostingsIterator {
+
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    abstract int docId();
+
+    abstract int tf();
+
+    // this term's share of the current document's score sum
+    abstract double score();
+
+    abstract int next();
+
+    // moves to the first posting with docId >= target (never backwards)
+    abstract int advance(int target);
+
+    // number of postings, for ordering iterators cheapest first
+    abstract int cost();
+
+    static class OfList extends PostingsIterator {
+        private final PostingList list;
+        private final Scorer scorer;
+        private final int termId;
+        private final double queryWeight;
+        // w(t, d) of the postings of block weighed, BinaryIndex.BLOCK_SIZE at a time
+        private final double[] weights;
+        private int weighed = -1;
+        private int pos = 0;
+
+        // scorer may be null for an iterator that is never scored
+        OfList(PostingList list, Scorer scorer, int termId, double queryWeight) {
+            this.list = list;
+            this.scorer = scorer;
+            this.termId = termId;
+            this.queryWeight = queryWeight;
+            this.weights = scorer == null ? null : new double[Math.min(list.size, BinaryIndex.BLOCK_SIZE)];
+        }
+
+        @Override
+        int docId() {
+            return pos < list.size ? list.docIds[pos] : NO_MORE_DOCS;
+        }
+
+        // position of the current posting in the list, for its positions
+        int index() {
+            return pos;
+        }
+
+        @Override
+        int tf() {
+            return list.tfs[pos];
+        }
+
+        @Override
+        double score() {
+            int block = pos / BinaryIndex.BLOCK_SIZE;
+            if (block != weighed) {
+                int from = block * BinaryIndex.BLOCK_SIZE;
+                scorer.weights(termId, list, from, Math.min(list.size, from + BinaryIndex.BLOCK_SIZE), weights);
+                weighed = block;
+            }
+            return queryWeight * weights[pos - block * BinaryIndex.BLOCK_SIZE];
+        }
+
+        @Override
+        int next() {
+            if (pos < list.size) pos++;
+            return docId();
+        }
+
+        @Override
+        int advance(int target) {
+            pos = list.advance(pos, target);
+            return docId();
+        }
+
+        @Override
+        int cost() {
+            return list.size;
+        }
+    }
+
+    static class OfBlocks extends PostingsIterator {
+        private final BinaryIndex.Cursor cursor;
+        private final Scorer scorer;
+        private final int termId;
+        private final double queryWeight;
+        private final double[] weights = new double[BinaryIndex.BLOCK_SIZE];
+        private boolean weighed;
+        private int pos = 0;
+
+        // scorer.weighsBlocks() must hold
+        OfBlocks(BinaryIndex.Cursor cursor, Scorer scorer, int termId, double queryWeight) {
+            this.cursor = cursor;
+            this.scorer = scorer;
+            this.termId = termId;
+            this.queryWeight = queryWeight;
+            load(0);
+        }
+
+        private void load(int block) {
+            cursor.load(block);
+            weighed = false;
+            pos = 0;
+        }
+
+        @Override
+        int docId() {
+            return pos < cursor.size ? cursor.docIds[pos] : NO_MORE_DOCS;
+        }
+
+        @Override
+        int tf() {
+            return cursor.tfs[pos];
+        }
+
+        @Override
+        double score() {
+            if (!weighed) {
+                scorer.weights(termId, new PostingList(cursor.docIds, cursor.tfs, cursor.size), weights);
+                weighed = true;
+            }
+            return queryWeight * weights[pos];
+        }
+
+        @Override
+        int next() {
+            if (pos < cursor.size && ++pos == cursor.size && cursor.block + 1 < cursor.numBlocks) {
+                load(cursor.block + 1);
+            }
+            return docId();
+        }
+
+        @Override
+        int advance(int target) {
+            int size = cursor.size;
+            if (pos < size && cursor.docIds[size - 1] >= target) {
+                pos = PostingList.gallop(cursor.docIds, pos, size, target);
+                return docId();
+            }
+            int block = cursor.findBlock(cursor.block + 1, target);
+            if (block >= cursor.numBlocks) {
+                // exhausted: stay past the end of the last block
+                pos = size;
+                return NO_MORE_DOCS;
+            }
+            load(block);
+            pos = PostingList.gallop(cursor.docIds, 0, cursor.size, target);
+            return docId();
+        }
+
+        @Override
+        int cost() {
+            return cursor.df;
+        }
+    }
+
+    // Iterators over disjoint, ascending docId ranges (the base index, then
+    // each segment) as one, moving on to the next when the current one runs out.
+    static class OfChain extends PostingsIterator {
+        private final PostingsIterator[] parts;
+        private int current = 0;
+
+        OfChain(List<PostingsIterator> parts) {
+            this.parts = parts.toArray(new PostingsIterator[0]);
+            skipExhausted();
+        }
+
+        private int skipExhausted() {
+            while (parts[current].docId() == NO_MORE_DOCS && current + 1 < parts.length) current++;
+            return parts[current].docId();
+        }
+
+        @Override
+        int docId() {
+            return parts[current].docId();
+        }
+
+        @Override
+        int tf() {
+            return parts[current].tf();
+        }
+
+        @Override
+        double score() {
+            return parts[current].score();
+        }
+
+        @Override
+        int next() {
+            parts[current].next();
+            return skipExhausted();
+        }
+
+        @Override
+        int advance(int target) {
+            while (parts[current].advance(target) == NO_MORE_DOCS && current + 1 < parts.length) current++;
+            return parts[current].docId();
+        }
+
+        @Override
+        int cost() {
+            long sum = 0;
+            for (PostingsIterator it : parts) sum += it.cost();
+            return (int) Math.min(sum, Integer.MAX_VALUE);
+        }
+    }
+
+    // On the smallest docId of its iterators, scoring the sum of those on it.
+    static class OfUnion extends PostingsIterator {
+        private final PostingsIterator[] its;
+        private int doc;
+
+        OfUnion(List<PostingsIterator> its) {
+            this.its = its.toArray(new PostingsIterator[0]);
+            doc = min();
+        }
+
+        private int min() {
+            int m = NO_MORE_DOCS;
+            for (PostingsIterator it : its) m = Math.min(m, it.docId());
+            return m;
+        }
+
+        @Override
+        int docId() {
+            return doc;
+        }
+
+        @Override
+        int tf() {
+            int tf = 0;
+            for (PostingsIterator it : its) if (it.docId() == doc) tf += it.tf();
+            return tf;
+        }
+
+        @Override
+        double score() {
+            double sum = 0.0;
+            for (PostingsIterator it : its) if (it.docId() == doc) sum += it.score();
+            return sum;
+        }
+
+        @Override
+        int next() {
+            if (doc == NO_MORE_DOCS) return doc;
+            for (PostingsIterator it : its) if (it.docId() == doc) it.next();
+            return doc = min();
+        }
+
+        @Override
+        int advance(int target) {
+            if (target <= doc) return doc;
+            for (PostingsIterator it : its) if (it.docId() < target) it.advance(target);
+            return doc = min();
+        }
+
+        @Override
+        int cost() {
+            long sum = 0;
+            for (PostingsIterator it : its) sum += it.cost();
+            return (int) Math.min(sum, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+// Relevance judgements from a TREC qrels file, one "<topic> 0 <DOCNO> <grade>"
+// line per judged document. Each topic keeps its judged docIds sorted with
+// the grades alongside, so judging a ranked document is a binary search over
+// an int array, with no boxing or DOCNO strings once loaded.
+class Qrels {
+
+    static class Judgements {
+        final int[] docIds;
+        final int[] grades;
+        // documents with grade > 0
+        final int numRelevant;
+        // positive grades in ascending order; read backwards it is the ideal ranking for nDCG
+        final int[] ideal;
+
+        Judgements(int[] docIds, int[] grades) {
+            this.docIds = docIds;
+            this.grades = grades;
+            int n = 0;
+            for (int g : grades) if (g > 0) n++;
+            numRelevant = n;
+            ideal = new int[n];
+            n = 0;
+            for (int g : grades) if (g > 0) ideal[n++] = g;
+            Arrays.sort(ideal);
+        }
+
+        // grade of a document, 0 when unjudged
+        int grade(int docId) {
+            int i = Arrays.binarySearch(docIds, docId);
+            return i >= 0 ? grades[i] : 0;
+        }
+    }
+
+    // topic -> judgements, in topic order
+    private final Map<Integer, Judgements> topics = new TreeMap<>();
+
+    // docIds resolves a DOCNO to the index's docId (-1 if unknown)
+    static Qrels read(String filename, ToIntFunction<String> docIds) throws IOException {
+        Map<Integer, Map<Integer, Integer>> judged = new TreeMap<>();
+        BufferedReader br = new BufferedReader(new FileReader(filename));
+        String line;
+        int unknown = 0;
+        while ((line = br.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 4) continue;
+            try {
+                int topic = Integer.parseInt(parts[0]);
+                int grade = Integer.parseInt(parts[3]);
+                int docId = docIds.applyAsInt(parts[2]);
+                if (docId < 0) {
+                    unknown++;
+                    continue;
+                }
+                judged.computeIfAbsent(topic, t -> new TreeMap<>()).put(docId, grade);
+            } catch (NumberFormatException ex) {
+                // ignore malformed
+            }
+        }
+        br.close();
+        if (unknown > 0) {
+            System.err.println("Warning: " + unknown + " judged DOCNOs in " + filename + " are not in the index");
+        }
+
+        Qrels q = new Qrels();
+        for (Map.Entry<Integer, Map<Integer, Integer>> e : judged.entrySet()) {
+            Map<Integer, Integer> docs = e.getValue();
+            int[] ids = new int[docs.size()];
+            int[] grades = new int[docs.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> d : docs.entrySet()) {
+                ids[i] = d.getKey();
+                grades[i++] = d.getValue();
+            }
+            q.topics.put(e.getKey(), new Judgements(ids, grades));
+        }
+        return q;
+    }
+
+    // null if the topic has no judgements
+    Judgements get(int topic) {
+        return topics.get(topic);
+    }
+
+    Set<Integer> topics() {
+        return topics.keySet();
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Rankings of recent queries, keyed by what a ranking actually depends on:
+// the multiset of query termIDs left after stopping and stemming, plus k and
+// whether the query is conjunctive. Word order, stopwords and inflections
+// that stem alike therefore all hit the same entry.
+//
+// Eviction is LRU with a TinyLFU admission filter. A count-min sketch of
+// 4-bit counters, halved every 10 x capacity lookups, estimates how often
+// each key has been asked for recently. When the cache is full, a new ranking
+// replaces the least recently used entry only if its query has been seen more
+// often. So a burst of one-off queries cannot flush the repeating ones.
+//
+// Every entry belongs to the index generation it was computed on. The first
+// lookup with another generation (the index was rebuilt, appended to or
+// merged, and then reloaded) empties the cache.
+class QueryCache {
+
+    // longer rankings (k = 0 over common terms) are recomputed rather than kept
+    static final int MAX_RESULTS = 1000;
+
+    static final class Key {
+        // sorted, with repeats
+        private final int[] termIds;
+        private final int k;
+        private final boolean conjunctive;
+        private final int hash;
+
+        Key(int[] termIds, int k, boolean conjunctive) {
+            this.termIds = termIds;
+            this.k = k;
+            this.conjunctive = conjunctive;
+            int h = Arrays.hashCode(termIds);
+            h = 31 * h + k;
+            this.hash = conjunctive ? ~h : h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && k == other.k && conjunctive == other.conjunctive
+                    && Arrays.equals(termIds, other.termIds);
+        }
+    }
+
+    private static final class Entry {
+        final int[] docIds;
+        final double[] scores;
+
+        Entry(int[] docIds, double[] scores) {
+            this.docIds = docIds;
+            this.scores = scores;
+        }
+    }
+
+    // Count-min sketch: four rows of 4-bit counters (one per byte). Each
+    // counter saturates at 15, and all are halved once sampleSize increments
+    // have been made, so old popularity fades.
+    private static final class Sketch {
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private final byte[] counts;
+        private final int width;
+        private final int sampleSize;
+        private int additions;
+
+        Sketch(int capacity) {
+            int w = 16;
+            while (w < capacity) w <<= 1;
+            width = w;
+            counts = new byte[4 * w];
+            sampleSize = 10 * w;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 15;
+            return row * width + (h & (width - 1));
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int i = index(hash, row);
+                if (counts[i] < 15) {
+                    counts[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < counts.length; i++) counts[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int f = 15;
+            for (int row = 0; row < 4; row++) f = Math.min(f, counts[index(hash, row)]);
+            return f;
+        }
+    }
+
+    private final int capacity;
+    // access order: the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final Sketch sketch;
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    // capacity in rankings
+    QueryCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.sketch = new Sketch(this.capacity);
+    }
+
+    // The cached ranking of key on index generation gen, or null. The
+    // ranking's arrays are shared with the cache and must not be modified.
+    synchronized QueryProcessor.Ranking get(Key key, long gen) {
+        if (gen != generation) {
+            if (!map.isEmpty()) invalidations.increment();
+            map.clear();
+            generation = gen;
+        }
+        sketch.increment(key.hash);
+        Entry e = map.get(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new QueryProcessor.Ranking(e.docIds, e.scores, e.docIds.length);
+    }
+
+    // Offers a ranking computed after a get(key, gen) miss.
+    synchronized void put(Key key, long gen, QueryProcessor.Ranking ranked) {
+        if (gen != generation || ranked.size > MAX_RESULTS || map.containsKey(key)) return;
+        if (map.size() >= capacity) {
+            Iterator<Key> eldest = map.keySet().iterator();
+            Key victim = eldest.next();
+            if (sketch.frequency(key.hash) <= sketch.frequency(victim.hash)) {
+                rejections.increment();
+                return;
+            }
+            eldest.remove();
+            evictions.increment();
+        }
+        map.put(key, new Entry(Arrays.copyOf(ranked.docIds, ranked.size), Arrays.copyOf(ranked.scores, ranked.size)));
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long rejections() {
+        return rejections.sum();
+    }
+
+    long invalidations() {
+        return invalidations.sum();
+    }
+
+    String summary() {
+        long h = hits(), m = misses();
+        double rate = h + m == 0 ? 0.0 : 100.0 * h / (h + m);
+        return String.format(Locale.US, "Query cache: %d of %d rankings, %d hits, %d misses (%.1f%% hit rate),"
+                        + " %d evicted, %d not admitted, %d invalidations",
+                size(), capacity, h, m, rate, evictions(), rejections(), invalidations());
+    }
+}
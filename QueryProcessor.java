@@ -4,9 +4,12 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
 import java.util.regex.*;
 
-public class QueryProcessor {
+public class QueryProcessor implements Closeable {
 
     enum QueryMode {
         TITLE,
@@ -14,94 +17,460 @@ public class QueryProcessor {
         TITLE_NARR
     }
 
-    static class Posting {
-        int docId;
-        int tf;
-        Posting(int d, int t) {
-            this.docId = d;
-            this.tf = t;
+    // Scored documents of one query in first-touched order; entries [0, size) are valid.
+    static class Ranking {
+        int[] docIds;
+        double[] scores;
+        int size;
+        // postings work, filled in top-k mode
+        QueryStats stats;
+
+        Ranking(int[] docIds, double[] scores, int size) {
+            this.docIds = docIds;
+            this.scores = scores;
+            this.size = size;
+        }
+
+        // Descending score, equal scores by ascending docId: the order TopKHeap
+        // ranks in, so a full ranking and a top-k one agree on ties and cutoffs.
+        void sort() {
+            quickSort(0, size - 1);
+        }
+
+        private boolean before(int a, int b) {
+            if (scores[a] != scores[b]) return scores[a] > scores[b];
+            return docIds[a] < docIds[b];
+        }
+
+        private void quickSort(int lo, int hi) {
+            while (lo < hi) {
+                if (hi - lo < 16) {
+                    for (int i = lo + 1; i <= hi; i++)
+                        for (int j = i; j > lo && before(j, j - 1); j--) swap(j, j - 1);
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                swap(mid, hi);
+                int store = lo;
+                for (int i = lo; i < hi; i++) {
+                    if (before(i, hi)) swap(i, store++);
+                }
+                swap(store, hi);
+                if (store - lo < hi - store) {
+                    quickSort(lo, store - 1);
+                    lo = store + 1;
+                } else {
+                    quickSort(store + 1, hi);
+                    hi = store - 1;
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            int d = docIds[a]; docIds[a] = docIds[b]; docIds[b] = d;
+            double s = scores[a]; scores[a] = scores[b]; scores[b] = s;
+        }
+
+        static Ranking empty() {
+            return new Ranking(new int[0], new double[0], 0);
         }
     }
 
-    // term -> termID
-    private Map<String, Integer> termToId = new HashMap<>();
+    // Dense per-query accumulator indexed by docID, plus the docIDs it touched.
+    // Each query thread owns one, so topics can be scored concurrently.
+    static class Accumulator {
+        final double[] acc;
+        final boolean[] seen;
+        final int[] touched;
+        // per-posting weights of the term being added, reused across terms
+        private double[] weights = new double[256];
+
+        Accumulator(int numDocIds) {
+            acc = new double[numDocIds];
+            seen = new boolean[numDocIds];
+            touched = new int[numDocIds];
+        }
+
+        double[] weights(int n) {
+            if (weights.length < n) weights = new double[Math.max(n, weights.length * 2)];
+            return weights;
+        }
+    }
+
+    // Postings work done for one query in top-k mode.
+    static class QueryStats {
+        long postings;
+        long scored;
+
+        long skipped() {
+            return postings - scored;
+        }
+    }
+
+    // term <-> termID: dictionary.dict, or dictionary.txt frozen the same way on load
+    private TermDictionary dictionary;
+    // expands privat*, *ation, ... against the dictionary
+    private Wildcards wildcards;
     // termID -> postings list
-    private Map<Integer, List<Posting>> inverted = new HashMap<>();
-    // termID -> idf
-    private Map<Integer, Double> idf = new HashMap<>();
+    private Map<Integer, PostingList> inverted = new HashMap<>();
+    // termID -> idf (NaN for terms without postings)
+    private double[] idf = new double[0];
     // docID -> |d|
-    private Map<Integer, Double> docNorm = new HashMap<>();
+    private double[] docNorm = new double[0];
+    // termID -> upper bound of (1+log tf)*idf/|d| over its postings
+    private double[] maxWeight = new double[0];
     // stopwords
-    private Set<String> stopwords = new HashSet<>();
-    // docID -> DOCNO (FT923-3189)
-    private Map<Integer, String> docIdToDocNo = new HashMap<>();
+    private CharArrayMap stopwords = new CharArrayMap();
+    // docID <-> DOCNO (FT923-3189), null without one
+    private DocNoStore docNos;
+
+    // index-time statistics from inverted_index.stats (or recomputed without it)
+    private IndexStats stats;
+
+    // memory-mapped binary index (null when running from inverted_index.txt)
+    private BinaryIndex binaryIndex;
+    // HEADLINE field postings, opened for bm25f only
+    private BinaryIndex headlineIndex;
+    // TEXT positions from inverted_index.pos (Indexer -positions), null without one
+    private PositionIndex positionIndex;
+    // segments added by Indexer -append since the full build, null if none
+    private Segments segments;
+
+    // ranking model and its BM25 parameters
+    private String model = "cosine";
+    private double k1 = 1.2;
+    private double b = 0.75;
+    private Scorer scorer;
 
     private int numDocs = 0;
+    private int maxTermId = 0;
+    // results per topic; 0 ranks every matching document
+    private int topK = 0;
+    // worker threads for batch topic processing
+    private int threads = 1;
+    // evaluate document-at-a-time (scoreDaat); conjunctive implies it
+    private boolean daat = false;
+    private boolean conjunctive = false;
+    // -proximity: each topic title becomes a phrase ("...", w = 0) or a window ("..."~w)
+    private int proximity = -1;
+    // -expand: most terms a wildcard query word expands to
+    private int expansionLimit = 50;
 
-    private Porter porter = new Porter();
+    // index structures are read-only once loaded, so only the accumulator is per thread
+    private final ThreadLocal<Accumulator> accumulators =
+            ThreadLocal.withInitial(() -> new Accumulator(docNorm.length));
+
+    private StemCache stems = new StemCache(1 << 14);
+
+    // rankings of recent queries (-cache), null if off
+    private QueryCache cache;
+    // identifies the loaded index (base files and segments manifest) for the cache
+    private long generation;
 
     // MAIN
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.err.println("Usage: java QueryProcessor <mode> <outputFile>");
+            System.err.println("Usage: java QueryProcessor <mode> <outputFile> [-k <n>] [-threads <n>] [-prewarm]"
+                    + " [-model <name>] [-k1 <x>] [-b <x>] [-daat] [-and] [-proximity <w>]"
+                    + " [-metrics <seconds>] [-metricsjson] [-cache <n>] [-expand <n>]");
             System.err.println("  <mode>: title | titledesc | titlenarr");
+            System.err.println("  -k <n>: keep only the top n documents per topic (MaxScore pruning)");
+            System.err.println("  -threads <n>: score topics on n worker threads");
+            System.err.println("  -prewarm: seed the stem cache with the words of topics.txt");
+            System.err.println("  -model <name>: cosine (default) | bm25 | bm25f (TEXT + HEADLINE)");
+            System.err.println("  -k1 <x>, -b <x>: BM25 parameters (default 1.2, 0.75)");
+            System.err.println("  -daat: document-at-a-time evaluation over postings iterators");
+            System.err.println("  -and: only rank documents containing every query term (implies -daat)");
+            System.err.println("  -proximity <w>: require the title terms as a phrase (w = 0) or within w positions");
+            System.err.println("  -metrics <seconds>: expose counters over JMX and dump them to stderr every n seconds (0: at the end only)");
+            System.err.println("  -metricsjson: dump the counters as JSON instead of text");
+            System.err.println("  -cache <n>: keep the rankings of up to n recent queries");
+            System.err.println("  -expand <n>: a wildcard (privat*, *ation) matches at most the n most frequent terms (default 50)");
             return;
         }
 
-        QueryMode mode;
-        switch (args[0].toLowerCase()) {
-            case "title":
-                mode = QueryMode.TITLE;
-                break;
-            case "titledesc":
-                mode = QueryMode.TITLE_DESC;
-                break;
-            case "titlenarr":
-                mode = QueryMode.TITLE_NARR;
-                break;
-            default:
-                System.err.println("Unknown mode: " + args[0]);
-                return;
+        QueryMode mode = parseMode(args[0]);
+        if (mode == null) {
+            System.err.println("Unknown mode: " + args[0]);
+            return;
         }
 
         String outputFile = args[1];
 
         QueryProcessor qp = new QueryProcessor();
-        qp.loadStopwords("stopwordlist.txt");
-        qp.loadDictionary("dictionary.txt");
-        qp.loadInvertedIndex("inverted_index.txt");
-
-        // Try to load mapping docID -> DOCNO (FT923-3189)
+        boolean prewarm = false;
+        String model = "cosine";
+        double k1 = 1.2, b = 0.75;
+        int metricsSeconds = -1;
+        boolean metricsJson = false;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-k") && i + 1 < args.length) {
+                qp.topK = Integer.parseInt(args[++i]);
+                if (qp.topK < 0) {
+                    System.err.println("-k must not be negative (0 ranks every matching document).");
+                    return;
+                }
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                qp.threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-prewarm")) {
+                prewarm = true;
+            } else if (args[i].equals("-daat")) {
+                qp.daat = true;
+            } else if (args[i].equals("-and")) {
+                qp.conjunctive = true;
+            } else if (args[i].equals("-proximity") && i + 1 < args.length) {
+                qp.proximity = Math.max(0, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-model") && i + 1 < args.length) {
+                model = args[++i].toLowerCase();
+            } else if (args[i].equals("-k1") && i + 1 < args.length) {
+                k1 = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-b") && i + 1 < args.length) {
+                b = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                metricsSeconds = Math.max(0, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-metricsjson")) {
+                metricsJson = true;
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                int n = Integer.parseInt(args[++i]);
+                if (n > 0) qp.setCache(new QueryCache(n));
+            } else if (args[i].equals("-expand") && i + 1 < args.length) {
+                qp.setExpansionLimit(Integer.parseInt(args[++i]));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
         try {
-            qp.loadDocIdMapping("docids.txt");
-        } catch (IOException e) {
-            System.err.println("Warning: could not load docids.txt; "
-                    + "DOCUMENT field will be numeric docID.");
+            qp.setModel(model, k1, b);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (metricsSeconds >= 0) Telemetry.start(metricsSeconds, metricsJson);
+        qp.load();
+        // as in QueryServer: the top-k heap is allocated at k
+        qp.topK = Math.min(qp.topK, qp.numDocs());
+        if (qp.proximity >= 0 && !qp.hasPositions()) {
+            System.err.println("-proximity needs inverted_index.pos; index with Indexer -positions first.");
+            return;
+        }
+        if (prewarm) {
+            qp.prewarmStems("topics.txt");
         }
-
-        qp.computeIdf();
-        qp.computeDocNorms("forward_index.txt");
 
         List<Topic> topics = qp.loadTopics("topics.txt");
         qp.processAllTopics(topics, mode, outputFile);
+        System.out.println(qp.stemSummary());
+        if (qp.cache != null) System.out.println(qp.cache.summary());
+        if (metricsSeconds >= 0) Telemetry.dump(metricsJson);
+    }
+
+    // title | titledesc | titlenarr, null for anything else
+    static QueryMode parseMode(String name) {
+        switch (name.toLowerCase()) {
+            case "title":
+                return QueryMode.TITLE;
+            case "titledesc":
+                return QueryMode.TITLE_DESC;
+            case "titlenarr":
+                return QueryMode.TITLE_NARR;
+            default:
+                return null;
+        }
     }
 
     // LOADERS
 
-    private void loadStopwords(String filename) throws IOException {
+    // Loads everything a query needs from the working directory: stopwords,
+    // dictionary, the binary (or text) inverted index, the DOCNO mapping,
+    // idf and document norms (from inverted_index.stats when available) and
+    // per-term score bounds.
+    void load() throws IOException {
+        Telemetry.register(stems);
+        loadStopwords("stopwordlist.txt");
+        File frozen = new File("dictionary.dict");
+        if (frozen.exists() && frozen.lastModified() >= new File("dictionary.txt").lastModified()) {
+            dictionary = TermDictionary.open("dictionary.dict");
+        } else {
+            loadDictionary("dictionary.txt");
+        }
+        wildcards = new Wildcards(dictionary);
+        if (new File("inverted_index.bin").exists()) {
+            openBinaryIndex("inverted_index.bin");
+        } else {
+            loadInvertedIndex("inverted_index.txt");
+        }
+
+        // docID -> DOCNO (FT923-3189); older index directories have text
+        // mappings, if any, and otherwise rankings show numeric docIDs
+        if (new File("inverted_index.docnos").exists()) {
+            docNos = DocNoStore.open("inverted_index.docnos");
+        } else {
+            loadDocIdMapping("docids.txt", "inverted_index.docids");
+        }
+
+        // precomputed at index time; older index directories fall back to
+        // recomputing everything from the postings and forward_index.txt
+        if (new File("inverted_index.stats").exists()) {
+            useStats(IndexStats.read("inverted_index.stats"));
+        } else {
+            computeIdf();
+            stats = fallbackStats(computeDocNorms("forward_index.txt"));
+        }
+        computeMaxWeights();
+        Segments appended = Segments.read("inverted_index.segments");
+        if (appended.size() > 0) {
+            openSegments(appended);
+        }
+        // a full rebuild rewrites the base files, an append or merge bumps the manifest
+        File base = new File(binaryIndex != null ? "inverted_index.bin" : "inverted_index.txt");
+        generation = 31 * base.lastModified() + appended.generation();
+
+        createScorer();
+
+        if (new File("inverted_index.pos").exists()) {
+            if (segments == null) {
+                positionIndex = PositionIndex.open("inverted_index.pos");
+            } else {
+                // appended segments have no positions
+                System.err.println("Warning: phrase queries are off until the index is rebuilt without segments.");
+            }
+        }
+    }
+
+    private void createScorer() throws IOException {
+        IntFunction<PostingList> headlines = t -> null;
+        if (model.equals("bm25f")) {
+            if (headlineIndex == null && new File("inverted_index.headline.bin").exists()) {
+                headlineIndex = BinaryIndex.open("inverted_index.headline.bin");
+            }
+            if (headlineIndex != null) {
+                BinaryIndex h = headlineIndex;
+                headlines = segments == null ? h::postings : t -> segments.headlinePostings(h.postings(t), t);
+            } else {
+                System.err.println("Warning: no inverted_index.headline.bin; using bm25 instead of bm25f.");
+                model = "bm25";
+            }
+        }
+        scorer = Scorer.create(model, this::postings, headlines, stats, idf, maxWeight, k1, b);
+    }
+
+    // Closes the index files and drops the stem cache from Telemetry. Only
+    // for a processor that load()ed them, once it is no longer in use: those
+    // made by withModel share its files.
+    @Override
+    public void close() throws IOException {
+        Telemetry.unregister(stems);
+        for (Closeable c : new Closeable[]{binaryIndex, headlineIndex, positionIndex, segments, dictionary, docNos}) {
+            if (c != null) c.close();
+        }
+    }
+
+    // A processor over the same loaded index with another ranking model, for
+    // comparing settings without reloading; both can be used concurrently.
+    QueryProcessor withModel(String name, double k1, double b) throws IOException {
+        QueryProcessor q = new QueryProcessor();
+        q.setModel(name, k1, b);
+        q.dictionary = dictionary;
+        q.wildcards = wildcards;
+        q.inverted = inverted;
+        q.idf = idf;
+        q.docNorm = docNorm;
+        q.maxWeight = maxWeight;
+        q.stopwords = stopwords;
+        q.docNos = docNos;
+        q.stats = stats;
+        q.binaryIndex = binaryIndex;
+        q.headlineIndex = headlineIndex;
+        q.positionIndex = positionIndex;
+        q.segments = segments;
+        q.numDocs = numDocs;
+        q.maxTermId = maxTermId;
+        q.topK = topK;
+        q.daat = daat;
+        q.conjunctive = conjunctive;
+        q.proximity = proximity;
+        q.expansionLimit = expansionLimit;
+        q.stems = stems;
+        // the cache is not shared: its rankings are only valid for this model
+        q.generation = generation;
+        q.createScorer();
+        return q;
+    }
+
+    // Caches rankings in c from now on; c may be shared with a processor
+    // loaded later with the same settings, whose index generation then
+    // invalidates it.
+    void setCache(QueryCache c) {
+        cache = c;
+        if (c != null) Telemetry.register(c);
+    }
+
+    void setExpansionLimit(int n) {
+        expansionLimit = Math.max(0, n);
+    }
+
+    // documents in the index, the most any ranking can hold
+    int numDocs() {
+        return stats.numDocs;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    // Selects the ranking model (cosine, bm25 or bm25f) used once load() has run.
+    void setModel(String name, double k1, double b) {
+        if (!name.equals("cosine") && !name.equals("bm25") && !name.equals("bm25f")) {
+            throw new IllegalArgumentException("Unknown model: " + name);
+        }
+        this.model = name;
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    String model() {
+        return model;
+    }
+
+    // the same statistics as inverted_index.stats, for index directories without one
+    private IndexStats fallbackStats(int[] docLength) {
+        int[] df = new int[idf.length];
+        if (binaryIndex != null) {
+            for (int i = 0; i < binaryIndex.numTerms(); i++) df[binaryIndex.termIdAt(i)] = binaryIndex.dfAt(i);
+        } else {
+            for (Map.Entry<Integer, PostingList> e : inverted.entrySet()) df[e.getKey()] = e.getValue().size;
+        }
+        long totalLength = 0;
+        for (int len : docLength) totalLength += len;
+        return new IndexStats(numDocs, totalLength, docLength, new int[docLength.length], docNorm, df, idf);
+    }
+
+    private void useStats(IndexStats s) {
+        stats = s;
+        numDocs = s.numDocs;
+        idf = s.idf;
+        docNorm = s.docNorm;
+    }
+
+    void loadStopwords(String filename) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(filename));
         String line;
         while ((line = br.readLine()) != null) {
             line = line.trim().toLowerCase();
             if (!line.isEmpty()) {
-                stopwords.add(line);
+                stopwords.put(line, 1);
             }
         }
         br.close();
     }
 
-    private void loadDictionary(String filename) throws IOException {
+    // Reads a "term = id" text dictionary (older index directories have no
+    // dictionary.dict).
+    void loadDictionary(String filename) throws IOException {
+        // file order, which is mostly sorted already, so freezing sorts in linear time
+        Map<String, Integer> termToId = new LinkedHashMap<>();
         BufferedReader br = new BufferedReader(new FileReader(filename));
         String line;
         while ((line = br.readLine()) != null) {
@@ -121,9 +490,10 @@ public class QueryProcessor {
             }
         }
         br.close();
+        dictionary = TermDictionary.of(termToId.keySet(), termToId::get);
     }
 
-    private void loadInvertedIndex(String filename) throws IOException {
+    void loadInvertedIndex(String filename) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(filename));
         String line;
         Set<Integer> docsSeen = new HashSet<>();
@@ -145,7 +515,7 @@ public class QueryProcessor {
             }
 
             String rest = line.substring(firstColon + 1).trim();
-            List<Posting> plist = new ArrayList<>();
+            PostingList.Builder plist = new PostingList.Builder(16);
             String[] postings = rest.split(";");
             for (String p : postings) {
                 p = p.trim();
@@ -155,33 +525,73 @@ public class QueryProcessor {
                 try {
                     int docId = Integer.parseInt(dt[0].trim());
                     int tf = Integer.parseInt(dt[1].trim());
-                    plist.add(new Posting(docId, tf));
+                    plist.add(docId, tf);
                     docsSeen.add(docId);
                 } catch (NumberFormatException ex) {
                     // ignore weird tokens
                 }
             }
-            if (!plist.isEmpty()) {
-                inverted.put(termId, plist);
+            if (plist.size() > 0) {
+                inverted.put(termId, plist.build());
+                maxTermId = Math.max(maxTermId, termId);
             }
         }
         br.close();
         numDocs = docsSeen.size();
     }
 
-    private void computeIdf() {
-        for (Map.Entry<Integer, List<Posting>> e : inverted.entrySet()) {
+    void openBinaryIndex(String filename) throws IOException {
+        binaryIndex = BinaryIndex.open(filename);
+        numDocs = binaryIndex.numDocs();
+        if (binaryIndex.numTerms() > 0) {
+            maxTermId = binaryIndex.termIdAt(binaryIndex.numTerms() - 1);
+        }
+    }
+
+    private PostingList postings(int termId) {
+        PostingList pl = binaryIndex != null ? binaryIndex.postings(termId) : inverted.get(termId);
+        return segments == null ? pl : segments.postings(pl, termId);
+    }
+
+    // Searches the appended segments along with the base index: statistics
+    // over all documents, MaxScore bounds rescaled to the combined idf.
+    private void openSegments(Segments s) throws IOException {
+        s.open();
+        IndexStats base = stats;
+        useStats(s.combine(base));
+        maxTermId = Math.max(maxTermId, stats.df.length - 1);
+        maxWeight = s.maxWeights(maxWeight, base.idf, idf);
+        segments = s;
+        System.out.println("Searching the base index and " + s.describe());
+    }
+
+    void computeIdf() {
+        idf = new double[maxTermId + 1];
+        Arrays.fill(idf, Double.NaN);
+        if (binaryIndex != null) {
+            for (int i = 0; i < binaryIndex.numTerms(); i++) {
+                int df = binaryIndex.dfAt(i);
+                if (df == 0) continue;
+                idf[binaryIndex.termIdAt(i)] = Math.log((double) numDocs / (double) df);
+            }
+            return;
+        }
+        for (Map.Entry<Integer, PostingList> e : inverted.entrySet()) {
             int termId = e.getKey();
-            int df = e.getValue().size();
+            int df = e.getValue().size;
             if (df == 0) continue;
             double value = Math.log((double) numDocs / (double) df);
-            idf.put(termId, value);
+            idf[termId] = value;
         }
     }
 
-    private void computeDocNorms(String filename) throws IOException {
-        Map<Integer, Map<Integer, Integer>> docTermTf = new HashMap<>();
+    private double idfOf(int termId) {
+        return termId >= 0 && termId < idf.length ? idf[termId] : Double.NaN;
+    }
 
+    // fills docNorm and returns the document lengths (sum of tf), indexed alike
+    int[] computeDocNorms(String filename) throws IOException {
+        int[] docLength = new int[0];
         BufferedReader br = new BufferedReader(new FileReader(filename));
         String line;
         Pattern colonPattern = Pattern.compile(":");
@@ -202,7 +612,8 @@ public class QueryProcessor {
             }
 
             String rest = line.substring(firstColon + 1).trim();
-            Map<Integer, Integer> tfMap = new HashMap<>();
+            // ascending termId, the order IndexStats.norm sums in
+            Map<Integer, Integer> tfMap = new TreeMap<>();
             String[] pairs = rest.split(";");
             for (String pair : pairs) {
                 pair = pair.trim();
@@ -217,46 +628,76 @@ public class QueryProcessor {
                     // ignore malformed
                 }
             }
-            docTermTf.put(docId, tfMap);
-        }
-        br.close();
 
-        for (Map.Entry<Integer, Map<Integer, Integer>> e : docTermTf.entrySet()) {
-            int docId = e.getKey();
-            Map<Integer, Integer> tfMap = e.getValue();
+            // the norm only needs this line, so don't keep the whole forward index around
             double sumSq = 0.0;
-
+            int length = 0;
             for (Map.Entry<Integer, Integer> tfEntry : tfMap.entrySet()) {
-                int termId = tfEntry.getKey();
-                int tf = tfEntry.getValue();
-                Double idfVal = idf.get(termId);
-                if (idfVal == null) continue;
-                double w = (1.0 + Math.log(tf)) * idfVal;
+                length += tfEntry.getValue();
+                double idfVal = idfOf(tfEntry.getKey());
+                if (Double.isNaN(idfVal)) continue;
+                double w = (1.0 + Math.log(tfEntry.getValue())) * idfVal;
                 sumSq += w * w;
             }
-            docNorm.put(docId, Math.sqrt(sumSq));
+            if (docId >= docNorm.length) {
+                docNorm = Arrays.copyOf(docNorm, Math.max(docId + 1, docNorm.length * 2));
+                docLength = Arrays.copyOf(docLength, docNorm.length);
+            }
+            docNorm[docId] = Math.sqrt(sumSq);
+            docLength[docId] = length;
         }
+        br.close();
+        return docLength;
     }
 
-    private void loadDocIdMapping(String filename) throws IOException {
-        // Format: docId DOCNO
-        BufferedReader br = new BufferedReader(new FileReader(filename));
-        String line;
-        while ((line = br.readLine()) != null) {
-            line = line.trim();
-            if (line.isEmpty()) continue;
-            String[] parts = line.split("\\s+");
-            if (parts.length < 2) continue;
-            try {
-                int docId = Integer.parseInt(parts[0]);
-                String docno = parts[1];
-                docIdToDocNo.put(docId, docno);
-            } catch (NumberFormatException ex) {
-                // ignore malformed
+    void computeMaxWeights() {
+        maxWeight = new double[maxTermId + 1];
+        if (binaryIndex != null) {
+            // stored at index time
+            for (int i = 0; i < binaryIndex.numTerms(); i++) {
+                maxWeight[binaryIndex.termIdAt(i)] = binaryIndex.maxWeightAt(i);
             }
+            return;
         }
-        br.close();
-        System.out.println("Loaded " + docIdToDocNo.size() + " docID->DOCNO mappings from " + filename);
+        for (Map.Entry<Integer, PostingList> e : inverted.entrySet()) {
+            int termId = e.getKey();
+            PostingList plist = e.getValue();
+            double max = 0.0;
+            for (int i = 0; i < plist.size; i++) {
+                int docId = plist.docIds[i];
+                if (docId >= docNorm.length || docNorm[docId] == 0.0) continue;
+                max = Math.max(max, (1.0 + Math.log(plist.tfs[i])) * idf[termId] / docNorm[docId]);
+            }
+            maxWeight[termId] = max;
+        }
+    }
+
+    // "docId DOCNO" lines from whichever of the files exist, into a DocNoStore
+    private void loadDocIdMapping(String... filenames) throws IOException {
+        TreeMap<Integer, String> mapping = new TreeMap<>();
+        for (String filename : filenames) {
+            if (!new File(filename).exists()) continue;
+            try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length < 2) continue;
+                    try {
+                        mapping.put(Integer.parseInt(parts[0]), parts[1]);
+                    } catch (NumberFormatException ex) {
+                        // ignore malformed
+                    }
+                }
+            }
+        }
+        if (mapping.isEmpty() || mapping.firstKey() < 0) return;
+        List<String> byDocId = new ArrayList<>();
+        for (Map.Entry<Integer, String> e : mapping.entrySet()) {
+            while (mapping.firstKey() + byDocId.size() < e.getKey()) byDocId.add(null);
+            byDocId.add(e.getValue());
+        }
+        docNos = DocNoStore.of(mapping.firstKey(), byDocId);
+        System.out.println("Loaded " + mapping.size() + " docID->DOCNO mappings");
     }
 
     // TOPIC PARSING
@@ -268,7 +709,7 @@ public class QueryProcessor {
         String narr;
     }
 
-    private List<Topic> loadTopics(String filename) throws IOException {
+    List<Topic> loadTopics(String filename) throws IOException {
         List<Topic> topics = new ArrayList<>();
         BufferedReader br = new BufferedReader(new FileReader(filename));
         String line;
@@ -334,66 +775,194 @@ public class QueryProcessor {
 
     // QUERY PROCESSING
 
-    private void processAllTopics(List<Topic> topics, QueryMode mode, String outputFile) throws IOException {
-        BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-
-        for (Topic t : topics) {
-            if (t == null) continue;
+    void processAllTopics(List<Topic> topics, QueryMode mode, String outputFile) throws IOException {
+        RunWriter out = new RunWriter(outputFile);
 
-            String text;
-            switch (mode) {
-                case TITLE:
-                    text = t.title;
-                    break;
-                case TITLE_DESC:
-                    text = (t.title == null ? "" : t.title) + " " + (t.desc == null ? "" : t.desc);
-                    break;
-                case TITLE_NARR:
-                    text = (t.title == null ? "" : t.title) + " " + (t.narr == null ? "" : t.narr);
-                    break;
-                default:
-                    text = t.title;
+        // With several threads topics are scored concurrently, but results are
+        // still collected and written in topic order.
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        List<Future<Ranking>> pending = new ArrayList<>();
+        if (pool != null) {
+            for (Topic t : topics) {
+                pending.add(t == null ? null : pool.submit(() -> rankTopic(t, mode)));
             }
+        }
 
-            List<String> qTerms = preprocess(text);
-            Map<Integer, Double> scores = scoreQuery(qTerms);
-            List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(scores.entrySet());
-            ranked.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+        try {
+            for (int ti = 0; ti < topics.size(); ti++) {
+                Topic t = topics.get(ti);
+                if (t == null) continue;
 
-            int rank = 1;
-            for (Map.Entry<Integer, Double> e : ranked) {
-                int docId = e.getKey();
-                double score = e.getValue();
-                if (score <= 0.0) continue;
+                Ranking ranked;
+                if (pool != null) {
+                    try {
+                        ranked = pending.get(ti).get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while scoring topic " + t.number, e);
+                    } catch (ExecutionException e) {
+                        throw new IOException("Scoring failed for topic " + t.number, e.getCause());
+                    }
+                } else {
+                    ranked = rankTopic(t, mode);
+                }
+                if (ranked.stats != null) {
+                    System.out.printf("Topic %d: %d results, skipped %d of %d postings%n",
+                            t.number, ranked.size, ranked.stats.skipped(), ranked.stats.postings);
+                }
+                writeRanking(out, t, ranked);
+            }
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    Ranking rankTopic(Topic t, QueryMode mode) {
+        return rankTopic(t, mode, topK);
+    }
 
-                // Prefer DOCNO (FT923-3189) if mapping exists, otherwise numeric docId
-                String docno = docIdToDocNo.getOrDefault(docId, String.valueOf(docId));
+    Ranking rankTopic(Topic t, QueryMode mode, int k) {
+        String text;
+        String title = t.title;
+        if (proximity >= 0 && title != null) {
+            title = "\"" + title.replace('"', ' ') + "\"" + (proximity > 0 ? "~" + proximity : "");
+        }
+        switch (mode) {
+            case TITLE:
+                text = title;
+                break;
+            case TITLE_DESC:
+                text = (title == null ? "" : title) + " " + (t.desc == null ? "" : t.desc);
+                break;
+            case TITLE_NARR:
+                text = (title == null ? "" : title) + " " + (t.narr == null ? "" : t.narr);
+                break;
+            default:
+                text = title;
+        }
 
-                bw.write(t.number + "\t" +
-                         docno + "\t" +
-                         rank + "\t" +
-                         String.format(Locale.US, "%.6f", score));
-                bw.newLine();
-                rank++;
+        try {
+            return rank(text, k);
+        } catch (NoPositionsException e) {
+            // a quoted topic still gets ranked, by its words alone
+            if (noPositionsReported.compareAndSet(false, true)) {
+                System.err.println("Warning: " + e.getMessage() + "; ranking quoted topic words without the phrase constraint.");
             }
+            return rank(PHRASE.matcher(text).replaceAll(" $1 "), k);
+        }
+    }
+
+    // Ranks free query text: the top k by MaxScore when k > 0, otherwise every
+    // matching document; -daat / -and use the document-at-a-time evaluator.
+    // "..." in the text is an exact phrase and "..."~w asks for its terms
+    // within a window of w positions; their words are scored like the rest,
+    // but only documents satisfying every phrase are returned. A word with *
+    // is a wildcard: its expansion is scored like query terms of their own,
+    // and with conjunctive any one of them satisfies it.
+    // Safe to call from several threads at once.
+    Ranking rank(String text, int k) {
+        return rank(text, k, conjunctive);
+    }
+
+    // conjunctive = only documents that contain every query term
+    Ranking rank(String text, int k, boolean conjunctive) {
+        long start = System.nanoTime();
+        List<Phrase> phrases = new ArrayList<>();
+        text = parsePhrases(text, phrases);
+        List<List<String>> expansions = new ArrayList<>();
+        text = parseWildcards(text, expansions);
+        List<String> qTerms = preprocess(text);
+        List<int[]> conjuncts = null;
+        if (!expansions.isEmpty()) {
+            if (conjunctive) conjuncts = conjuncts(qTerms, expansions);
+            for (List<String> e : expansions) qTerms.addAll(e);
+        }
+        // phrase queries also depend on term order and positions, and an -and
+        // wildcard on its grouping, so they are not cached
+        QueryCache.Key key = cache != null && phrases.isEmpty() && conjuncts == null
+                ? cacheKey(qTerms, k, conjunctive) : null;
+        Ranking cached = key != null ? cache.get(key, generation) : null;
+        Ranking ranked;
+        if (cached != null) {
+            ranked = cached;
+        } else if (!phrases.isEmpty()) {
+            // positions are checked per candidate, which needs documents in docId order
+            PhraseMatcher matcher = phraseMatcher(phrases);
+            ranked = matcher == null ? Ranking.empty() : scoreDaat(qTerms, k, conjunctive, matcher, conjuncts);
+        } else if (conjunctive || daat) {
+            ranked = scoreDaat(qTerms, k, conjunctive, null, conjuncts);
+        } else if (k > 0) {
+            QueryStats stats = new QueryStats();
+            ranked = scoreTopK(qTerms, k, stats);
+            ranked.stats = stats;
+        } else {
+            ranked = scoreQuery(qTerms);
+            ranked.sort();
         }
+        if (key != null && cached == null) cache.put(key, generation, ranked);
+        Telemetry.queries.increment();
+        Telemetry.queryNanos.record(System.nanoTime() - start);
+        return ranked;
+    }
+
+    // Query terms outside the dictionary never contribute to a ranking, so
+    // they are left out of the key along with word order.
+    private QueryCache.Key cacheKey(List<String> queryTerms, int k, boolean conjunctive) {
+        int[] termIds = new int[queryTerms.size()];
+        int n = 0;
+        for (String term : queryTerms) {
+            int termId = dictionary.termId(term);
+            if (termId >= 0) termIds[n++] = termId;
+        }
+        termIds = Arrays.copyOf(termIds, n);
+        Arrays.sort(termIds);
+        return new QueryCache.Key(termIds, k, conjunctive);
+    }
+
+    // seeds the stem cache with the query words of a text file
+    void prewarmStems(String textFile) throws IOException {
+        stems.prewarm(textFile, true, stopwords);
+    }
+
+    String stemSummary() {
+        return stems.summary();
+    }
+
+    // DOCNO (FT923-3189) if the mapping has it, otherwise the numeric docId;
+    // only called for the rows of a ranking that are written out
+    String docNo(int docId) {
+        String docNo = docNos != null ? docNos.docNo(docId) : null;
+        return docNo != null ? docNo : String.valueOf(docId);
+    }
+
+    boolean hasDocNos() {
+        return docNos != null;
+    }
+
+    // docId of a DOCNO through the mapping, -1 if it is not there. The
+    // numeric suffix is never used as a guess: FT921-1234 is not FT911-1234.
+    int docId(String docNo) {
+        return docNos != null ? docNos.docId(docNo) : -1;
+    }
 
-        bw.flush();
-        bw.close();
+    private void writeRanking(RunWriter out, Topic t, Ranking ranked) throws IOException {
+        int rank = 1;
+        for (int i = 0; i < ranked.size; i++) {
+            double score = ranked.scores[i];
+            if (score <= 0.0) continue;
+            out.write(t.number, docNo(ranked.docIds[i]), rank++, score);
+        }
     }
 
     private List<String> preprocess(String text) {
         List<String> result = new ArrayList<>();
         if (text == null) return result;
 
-        text = text.toLowerCase();
-        text = text.replaceAll("[^a-z0-9]+", " ");
-
-        String[] tokens = text.split("\\s+");
-        for (String tok : tokens) {
-            if (tok.isEmpty()) continue;
-            if (stopwords.contains(tok)) continue;
-            String stem = porter.stripAffixes(tok);
+        Tokenizer tok = new Tokenizer(true).reset(text);
+        while (tok.next()) {
+            if (stopwords.contains(tok.buffer(), 0, tok.length())) continue;
+            String stem = stems.stem(tok.buffer(), 0, tok.length());
             if (stem == null || stem.isEmpty()) continue;
             if (stopwords.contains(stem)) continue;
             result.add(stem);
@@ -401,65 +970,461 @@ public class QueryProcessor {
         return result;
     }
 
-    private Map<Integer, Double> scoreQuery(List<String> queryTerms) {
-        Map<Integer, Integer> qtf = new HashMap<>();
+    // WILDCARDS
 
+    private static final Pattern WILDCARD = Pattern.compile("[A-Za-z0-9]*\\*[A-Za-z0-9*]*");
+
+    // Collects the terms each wildcard word of text expands to into
+    // expansions and returns the text without the wildcard words.
+    private String parseWildcards(String text, List<List<String>> expansions) {
+        if (text == null || text.indexOf('*') < 0) return text;
+        Matcher m = WILDCARD.matcher(text);
+        StringBuffer rest = new StringBuffer();
+        while (m.find()) {
+            expansions.add(wildcards.expand(m.group().toLowerCase(), expansionLimit,
+                    termId -> termId < stats.df.length ? stats.df[termId] : 0));
+            m.appendReplacement(rest, " ");
+        }
+        m.appendTail(rest);
+        return rest.toString();
+    }
+
+    // The termIDs a conjunctive query needs one of: each plain term alone,
+    // each wildcard with its whole expansion (empty if it matched nothing).
+    private List<int[]> conjuncts(List<String> queryTerms, List<List<String>> expansions) {
+        List<int[]> conjuncts = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
         for (String term : queryTerms) {
-            Integer termId = termToId.get(term);
-            if (termId == null) continue;
-            qtf.put(termId, qtf.getOrDefault(termId, 0) + 1);
+            int termId = dictionary.termId(term);
+            if (termId >= 0 && seen.add(termId)) conjuncts.add(new int[]{termId});
+        }
+        for (List<String> e : expansions) {
+            conjuncts.add(e.stream().mapToInt(dictionary::termId).toArray());
         }
+        return conjuncts;
+    }
+
+    // PHRASES
+
+    private static final Pattern PHRASE = Pattern.compile("\"([^\"]*)\"(?:~(\\d+))?");
 
-        if (qtf.isEmpty()) {
-            return Collections.emptyMap();
+    // A phrase query against an index without positions (none built, or
+    // phrases turned off because segments were appended): a limit of the
+    // loaded index, not a fault, so QueryServer answers it with 400.
+    static class NoPositionsException extends RuntimeException {
+        NoPositionsException() {
+            super("phrase queries need inverted_index.pos (Indexer -positions, without appended segments)");
+        }
+    }
+
+    // the batch paths report a missing position index once per run
+    private static final AtomicBoolean noPositionsReported = new AtomicBoolean();
+
+    boolean hasPositions() {
+        return positionIndex != null;
+    }
+
+    // Query terms that must occur on consecutive positions (window 0) or all
+    // within window consecutive positions, in any order.
+    private static class Phrase {
+        final int[] termIds;
+        final int window;
+
+        Phrase(int[] termIds, int window) {
+            this.termIds = termIds;
+            this.window = window;
+        }
+    }
+
+    // Collects the quoted phrases of text into phrases and returns the text
+    // without the quotes and ~w suffixes. A phrase word outside the dictionary
+    // gets termId -1, so the phrase cannot match.
+    private String parsePhrases(String text, List<Phrase> phrases) {
+        if (text == null || text.indexOf('"') < 0) return text;
+        Matcher m = PHRASE.matcher(text);
+        StringBuffer rest = new StringBuffer();
+        while (m.find()) {
+            List<String> words = preprocess(m.group(1));
+            int window = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+            int[] termIds;
+            if (window == 0) {
+                termIds = new int[words.size()];
+                for (int i = 0; i < termIds.length; i++) termIds[i] = dictionary.termId(words.get(i));
+            } else {
+                // order does not matter in a window, so each term is checked once
+                termIds = new LinkedHashSet<>(words).stream()
+                        .mapToInt(dictionary::termId).toArray();
+            }
+            if (termIds.length > 0) phrases.add(new Phrase(termIds, window));
+            m.appendReplacement(rest, " " + Matcher.quoteReplacement(m.group(1)) + " ");
+        }
+        m.appendTail(rest);
+        return rest.toString().replace('"', ' ');
+    }
+
+    // Null if some phrase cannot match anywhere.
+    private PhraseMatcher phraseMatcher(List<Phrase> phrases) {
+        if (positionIndex == null) throw new NoPositionsException();
+        PostingsIterator.OfList[][] its = new PostingsIterator.OfList[phrases.size()][];
+        PositionIndex.Cursor[][] cursors = new PositionIndex.Cursor[phrases.size()][];
+        int[][][] pos = new int[phrases.size()][][];
+        int[] window = new int[phrases.size()];
+        for (int p = 0; p < phrases.size(); p++) {
+            Phrase phrase = phrases.get(p);
+            int n = phrase.termIds.length;
+            its[p] = new PostingsIterator.OfList[n];
+            cursors[p] = new PositionIndex.Cursor[n];
+            pos[p] = new int[n][];
+            window[p] = phrase.window;
+            for (int i = 0; i < n; i++) {
+                int termId = phrase.termIds[i];
+                PostingList plist = termId < 0 ? null : postings(termId);
+                if (plist == null) return null;
+                PositionIndex.Cursor cursor = positionIndex.cursor(termId, plist);
+                if (cursor == null) return null;
+                its[p][i] = new PostingsIterator.OfList(plist, null, termId, 0.0);
+                cursors[p][i] = cursor;
+                // grown in matches() when a document repeats the term more often
+                pos[p][i] = new int[16];
+            }
+        }
+        return new PhraseMatcher(its, cursors, pos, window);
+    }
+
+    // Checks candidate documents, in increasing docId order, against every
+    // phrase: all its terms must be in the document (galloping over their TEXT
+    // postings) before any positions are decoded.
+    private static class PhraseMatcher {
+        private final PostingsIterator.OfList[][] its;
+        private final PositionIndex.Cursor[][] cursors;
+        private final int[][][] pos;
+        private final int[][] len;
+        private final int[] window;
+
+        PhraseMatcher(PostingsIterator.OfList[][] its, PositionIndex.Cursor[][] cursors, int[][][] pos, int[] window) {
+            this.its = its;
+            this.cursors = cursors;
+            this.pos = pos;
+            this.window = window;
+            this.len = new int[its.length][];
+            for (int p = 0; p < its.length; p++) len[p] = new int[its[p].length];
+        }
+
+        boolean matches(int docId) {
+            for (int p = 0; p < its.length; p++) {
+                PostingsIterator.OfList[] terms = its[p];
+                for (PostingsIterator.OfList it : terms) {
+                    if (it.advance(docId) != docId) return false;
+                }
+                for (int i = 0; i < terms.length; i++) {
+                    int tf = terms[i].tf();
+                    if (tf > pos[p][i].length) pos[p][i] = new int[Math.max(tf, 2 * pos[p][i].length)];
+                    len[p][i] = cursors[p][i].read(terms[i].index(), pos[p][i]);
+                }
+                boolean ok = window[p] == 0
+                        ? PositionIndex.phrase(pos[p], len[p])
+                        : PositionIndex.window(pos[p], len[p], window[p]);
+                if (!ok) return false;
+            }
+            return true;
+        }
+    }
+
+    // Fills termID -> query term weight and returns the query vector norm.
+    private double queryWeights(List<String> queryTerms, Map<Integer, Double> qWeight) {
+        Map<Integer, Integer> qtf = new HashMap<>();
+
+        for (String term : queryTerms) {
+            int termId = dictionary.termId(term);
+            if (termId < 0) continue;
+            qtf.put(termId, qtf.getOrDefault(termId, 0) + 1);
         }
 
-        Map<Integer, Double> qWeight = new HashMap<>();
         double qNormSq = 0.0;
 
         for (Map.Entry<Integer, Integer> e : qtf.entrySet()) {
             int termId = e.getKey();
-            int tf = e.getValue();
-            Double idfVal = idf.get(termId);
-            if (idfVal == null) continue;
-            double w = (1.0 + Math.log(tf)) * idfVal;
+            double w = scorer.queryWeight(termId, e.getValue());
+            if (Double.isNaN(w)) continue;
             qWeight.put(termId, w);
             qNormSq += w * w;
         }
+        return Math.sqrt(qNormSq);
+    }
 
-        double qNorm = Math.sqrt(qNormSq);
+    private Ranking scoreQuery(List<String> queryTerms) {
+        Map<Integer, Double> qWeight = new HashMap<>();
+        double qNorm = queryWeights(queryTerms, qWeight);
         if (qNorm == 0.0) {
-            return Collections.emptyMap();
+            return Ranking.empty();
         }
 
-        Map<Integer, Double> dotProd = new HashMap<>();
-
+        Accumulator a = accumulators.get();
+        double[] acc = a.acc;
+        boolean[] seen = a.seen;
+        int[] touched = a.touched;
+        int numTouched = 0;
         for (Map.Entry<Integer, Double> e : qWeight.entrySet()) {
             int termId = e.getKey();
             double wq = e.getValue();
-            List<Posting> plist = inverted.get(termId);
+            PostingList plist = scorer.postings(termId);
             if (plist == null) continue;
+            Telemetry.postingsDecoded.add(plist.size);
+
+            double[] wd = a.weights(plist.size);
+            scorer.weights(termId, plist, wd);
+            int[] docIds = plist.docIds;
+            for (int i = 0; i < plist.size; i++) {
+                int docId = docIds[i];
+                if (docId >= acc.length) continue;
+                if (!seen[docId]) {
+                    seen[docId] = true;
+                    touched[numTouched++] = docId;
+                }
+                acc[docId] += wq * wd[i];
+            }
+        }
+
+        Telemetry.accumulatorDocs.add(numTouched);
+        Telemetry.accumulatorMax.accumulate(numTouched);
+
+        // copy out the final scores and reset the accumulator for the next query
+        int[] resultDocs = new int[numTouched];
+        double[] resultScores = new double[numTouched];
+        int n = 0;
+        for (int i = 0; i < numTouched; i++) {
+            int docId = touched[i];
+            double score = scorer.finish(docId, acc[docId], qNorm);
+            acc[docId] = 0.0;
+            seen[docId] = false;
+            if (Double.isNaN(score)) continue;
+            resultDocs[n] = docId;
+            resultScores[n] = score;
+            n++;
+        }
+        return new Ranking(resultDocs, resultScores, n);
+    }
+
+    // Top-k ranking, document-at-a-time with MaxScore pruning. Query terms
+    // are ordered by their score upper bound; the low-bound terms whose bounds sum
+    // below the current k-th best score are "non-essential": a document found only
+    // in them cannot enter the top k, so they are just probed (with galloping
+    // skips) for candidates produced by the essential terms.
+    private Ranking scoreTopK(List<String> queryTerms, int k, QueryStats stats) {
+        Map<Integer, Double> qWeight = new HashMap<>();
+        double qNorm = queryWeights(queryTerms, qWeight);
+        if (qNorm == 0.0) {
+            return Ranking.empty();
+        }
+
+        int n = 0;
+        PostingsIterator[] its = new PostingsIterator[qWeight.size()];
+        double[] ub = new double[its.length];
+        for (Map.Entry<Integer, Double> e : qWeight.entrySet()) {
+            PostingsIterator it = iterator(e.getKey(), e.getValue());
+            if (it == null) continue;
+            // insertion sort by ascending upper bound
+            double bound = scorer.bound(e.getKey(), e.getValue(), qNorm);
+            int i = n++;
+            while (i > 0 && ub[i - 1] > bound) {
+                its[i] = its[i - 1];
+                ub[i] = ub[i - 1];
+                i--;
+            }
+            its[i] = it;
+            ub[i] = bound;
+            stats.postings += it.cost();
+        }
+
+        // cum[i] = best possible score from lists 0..i
+        double[] cum = new double[n];
+        for (int i = 0; i < n; i++) cum[i] = (i > 0 ? cum[i - 1] : 0.0) + ub[i];
+
+        TopKHeap heap = new TopKHeap(k);
+        int firstEssential = 0;
+
+        while (true) {
+            double theta = heap.threshold();
+            while (firstEssential < n && heap.isFull() && cum[firstEssential] < theta) firstEssential++;
+            if (firstEssential == n) break;
+
+            int doc = PostingsIterator.NO_MORE_DOCS;
+            for (int i = firstEssential; i < n; i++) doc = Math.min(doc, its[i].docId());
+            if (doc == PostingsIterator.NO_MORE_DOCS) break;
+
+            double dot = 0.0;
+            for (int i = firstEssential; i < n; i++) {
+                if (its[i].docId() == doc) {
+                    dot += its[i].score();
+                    its[i].next();
+                    stats.scored++;
+                }
+            }
+            double score = scorer.finish(doc, dot, qNorm);
+            if (Double.isNaN(score)) continue;
+
+            boolean pruned = false;
+            for (int i = firstEssential - 1; i >= 0; i--) {
+                if (score + cum[i] < theta) {
+                    pruned = true;
+                    break;
+                }
+                if (its[i].advance(doc) == doc) {
+                    dot += its[i].score();
+                    its[i].next();
+                    stats.scored++;
+                    score = scorer.finish(doc, dot, qNorm);
+                }
+            }
+            if (pruned) continue;
+
+            if (score > 0.0) heap.offer(doc, score);
+        }
+        return heap.drain();
+    }
+
+    // Plain document-at-a-time evaluation. Disjunctive queries merge the term
+    // iterators through a heap keyed by their current docId, so each document is
+    // completed and scored before the next one starts; conjunctive queries
+    // leapfrog the iterators with advance() from the rarest term, skipping
+    // everything that cannot contain all terms. Memory is bounded by k (or the
+    // result size when k = 0), not by an accumulator over the collection.
+    // Documents failing the phrase filter (if any) are not collected.
+    // conjuncts: with conjunctive, the termID sets of which a document needs
+    // one each (see conjuncts()); null when every query term is its own.
+    private Ranking scoreDaat(List<String> queryTerms, int k, boolean conjunctive, PhraseMatcher filter,
+                              List<int[]> conjuncts) {
+        Map<Integer, Double> qWeight = new HashMap<>();
+        double qNorm = queryWeights(queryTerms, qWeight);
+        if (qNorm == 0.0) {
+            return Ranking.empty();
+        }
+
+        List<PostingsIterator> its = new ArrayList<>();
+        if (conjunctive && conjuncts != null) {
+            // a term in several conjuncts is scored in the first one only
+            Set<Integer> scored = new HashSet<>();
+            for (int[] conjunct : conjuncts) {
+                List<PostingsIterator> any = new ArrayList<>();
+                for (int termId : conjunct) {
+                    Double w = qWeight.get(termId);
+                    if (w == null) continue;
+                    PostingsIterator it = iterator(termId, scored.add(termId) ? w : 0.0);
+                    if (it != null) any.add(it);
+                }
+                if (any.isEmpty()) {
+                    // a plain term without a weight is ignored, as below
+                    if (conjunct.length == 1 && !qWeight.containsKey(conjunct[0])) continue;
+                    return Ranking.empty();
+                }
+                its.add(any.size() == 1 ? any.get(0) : new PostingsIterator.OfUnion(any));
+            }
+        } else {
+            for (Map.Entry<Integer, Double> e : qWeight.entrySet()) {
+                PostingsIterator it = iterator(e.getKey(), e.getValue());
+                if (it != null) its.add(it);
+                else if (conjunctive) return Ranking.empty();
+            }
+        }
+        if (its.isEmpty()) return Ranking.empty();
+
+        Collector out = new Collector(k);
+        if (conjunctive) {
+            its.sort(Comparator.comparingInt(PostingsIterator::cost));
+            PostingsIterator lead = its.get(0);
+            int doc = lead.docId();
+            outer:
+            while (doc != PostingsIterator.NO_MORE_DOCS) {
+                for (int i = 1; i < its.size(); i++) {
+                    int d = its.get(i).advance(doc);
+                    if (d != doc) {
+                        doc = lead.advance(d);
+                        continue outer;
+                    }
+                }
+                if (filter == null || filter.matches(doc)) {
+                    double sum = 0.0;
+                    for (PostingsIterator it : its) sum += it.score();
+                    out.collect(doc, scorer.finish(doc, sum, qNorm));
+                }
+                doc = lead.next();
+            }
+        } else {
+            PriorityQueue<PostingsIterator> queue =
+                    new PriorityQueue<>(its.size(), Comparator.comparingInt(PostingsIterator::docId));
+            queue.addAll(its);
+            while (!queue.isEmpty()) {
+                int doc = queue.peek().docId();
+                double sum = 0.0;
+                while (!queue.isEmpty() && queue.peek().docId() == doc) {
+                    PostingsIterator it = queue.poll();
+                    sum += it.score();
+                    if (it.next() != PostingsIterator.NO_MORE_DOCS) queue.add(it);
+                }
+                if (filter == null || filter.matches(doc)) {
+                    out.collect(doc, scorer.finish(doc, sum, qNorm));
+                }
+            }
+        }
+        return out.ranking();
+    }
 
-            double idfVal = idf.get(termId);
-            for (Posting p : plist) {
-                Double docNormVal = docNorm.get(p.docId);
-                if (docNormVal == null || docNormVal == 0.0) continue;
-                double wd = (1.0 + Math.log(p.tf)) * idfVal;
-                double partial = wq * wd;
-                dotProd.put(p.docId, dotProd.getOrDefault(p.docId, 0.0) + partial);
+    // Straight from the binary index's blocks when possible, decoding only
+    // the blocks the evaluation reaches, and chained through the appended
+    // segments' blocks without copying them; otherwise over the decoded list.
+    private PostingsIterator iterator(int termId, double queryWeight) {
+        if (binaryIndex != null && binaryIndex.codec() != null && scorer.weighsBlocks()) {
+            List<PostingsIterator> parts = new ArrayList<>();
+            BinaryIndex.Cursor cursor = binaryIndex.cursor(termId);
+            if (cursor != null) parts.add(new PostingsIterator.OfBlocks(cursor, scorer, termId, queryWeight));
+            List<BinaryIndex.Cursor> appended = segments == null ? List.of() : segments.cursors(termId);
+            if (appended != null) {
+                for (BinaryIndex.Cursor c : appended) {
+                    parts.add(new PostingsIterator.OfBlocks(c, scorer, termId, queryWeight));
+                }
+                if (parts.isEmpty()) return null;
+                return parts.size() == 1 ? parts.get(0) : new PostingsIterator.OfChain(parts);
             }
         }
+        PostingList plist = scorer.postings(termId);
+        if (plist == null) return null;
+        Telemetry.postingsDecoded.add(plist.size);
+        // weighed a block at a time as the evaluation reaches it
+        return new PostingsIterator.OfList(plist, scorer, termId, queryWeight);
+    }
+
+    // Results of a document-at-a-time pass: the k best, or all of them when k = 0.
+    private static class Collector {
+        private final TopKHeap heap;
+        private int[] docIds = new int[0];
+        private double[] scores = new double[0];
+        private int size = 0;
 
-        Map<Integer, Double> scores = new HashMap<>();
-        for (Map.Entry<Integer, Double> e : dotProd.entrySet()) {
-            int docId = e.getKey();
-            double dot = e.getValue();
-            Double dn = docNorm.get(docId);
-            if (dn == null || dn == 0.0) continue;
-            double score = dot / (dn * qNorm);
-            scores.put(docId, score);
+        Collector(int k) {
+            heap = k > 0 ? new TopKHeap(k) : null;
         }
 
-        return scores;
+        void collect(int docId, double score) {
+            if (Double.isNaN(score)) return;
+            if (heap != null) {
+                if (score > 0.0) heap.offer(docId, score);
+                return;
+            }
+            if (size == docIds.length) {
+                int n = Math.max(16, size * 2);
+                docIds = Arrays.copyOf(docIds, n);
+                scores = Arrays.copyOf(scores, n);
+            }
+            docIds[size] = docId;
+            scores[size] = score;
+            size++;
+        }
+
+        Ranking ranking() {
+            if (heap != null) return heap.drain();
+            Ranking r = new Ranking(docIds, scores, size);
+            r.sort();
+            return r;
+        }
     }
 }
@@ -0,0 +1,317 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Resident HTTP front end for QueryProcessor: the index, idf and document
+// norms are loaded once at startup and then shared by all request threads.
+//
+//   GET /search?q=<text>[&k=<n>][&op=or|and][&format=json|trec][&id=<qid>]
+//   GET /stats
+//   GET /metrics[?format=json|text]
+//   POST /reload
+//
+// Every response carries its server-side latency (X-Query-Micros header and,
+// for JSON, a took_us field); /stats reports totals since startup. /metrics
+// serves the process-wide Telemetry counters, which are also on JMX.
+//
+// Rankings of repeated queries come from a QueryCache (-cache, on by
+// default). /reload loads the index again, e.g. after Indexer -append, and
+// swaps it in once loaded; in-flight queries finish on the old one, which is
+// closed after the last of them, and the new index generation invalidates
+// the cached rankings.
+public class QueryServer {
+
+    private volatile Loaded current;
+    private final String model;
+    private final boolean prewarm;
+    private final QueryCache cache;
+    private final int expansionLimit;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0);
+
+    // A loaded processor and its users: the server while it is current, plus
+    // each request running on it. The last one to let go closes its files.
+    private static final class Loaded {
+        final QueryProcessor qp;
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        Loaded(QueryProcessor qp) {
+            this.qp = qp;
+        }
+
+        // false once it has been closed
+        boolean acquire() {
+            for (int u = users.get(); u > 0; u = users.get()) {
+                if (users.compareAndSet(u, u + 1)) return true;
+            }
+            return false;
+        }
+
+        void release() {
+            if (users.decrementAndGet() > 0) return;
+            try {
+                qp.close();
+            } catch (IOException e) {
+                System.err.println("Warning: could not close the old index: " + e.getMessage());
+            }
+        }
+    }
+
+    QueryServer(String model, boolean prewarm, QueryCache cache, int expansionLimit) {
+        this.model = model;
+        this.prewarm = prewarm;
+        this.cache = cache;
+        this.expansionLimit = expansionLimit;
+    }
+
+    private QueryProcessor load() throws IOException {
+        QueryProcessor q = new QueryProcessor();
+        q.setModel(model, 1.2, 0.75);
+        q.load();
+        if (prewarm) {
+            q.prewarmStems("topics.txt");
+        }
+        q.setCache(cache);
+        q.setExpansionLimit(expansionLimit);
+        return q;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean prewarm = false;
+        String model = "cosine";
+        int metricsSeconds = 0;
+        boolean metricsJson = false;
+        int cacheSize = 4096;
+        int expansionLimit = 50;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-prewarm")) {
+                prewarm = true;
+            } else if (args[i].equals("-model") && i + 1 < args.length) {
+                model = args[++i].toLowerCase();
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                metricsSeconds = Math.max(0, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-metricsjson")) {
+                metricsJson = true;
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                cacheSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-expand") && i + 1 < args.length) {
+                expansionLimit = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: java QueryServer [-port <n>] [-threads <n>] [-prewarm] [-model <name>]"
+                        + " [-metrics <seconds>] [-metricsjson] [-cache <n>] [-expand <n>]");
+                System.err.println("  -cache <n>: rankings kept for repeated queries (default 4096, 0: off)");
+                System.err.println("  -expand <n>: terms a wildcard query word expands to at most (default 50)");
+                return;
+            }
+        }
+
+        // always on JMX; -metrics adds a periodic dump to stderr
+        Telemetry.start(metricsSeconds, metricsJson);
+        long start = System.currentTimeMillis();
+        QueryServer server = new QueryServer(model, prewarm, cacheSize > 0 ? new QueryCache(cacheSize) : null,
+                expansionLimit);
+        server.current = new Loaded(server.load());
+        System.out.println("Index loaded in " + (System.currentTimeMillis() - start) / 1000.0 + " seconds.");
+
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/search", server::search);
+        http.createContext("/stats", server::stats);
+        http.createContext("/metrics", server::metrics);
+        http.createContext("/reload", server::reload);
+        http.setExecutor(Executors.newFixedThreadPool(threads));
+        http.start();
+        System.out.println("Listening on port " + port + " with " + threads + " threads (" + server.current.qp.model() + ").");
+    }
+
+    // HANDLERS
+
+    // the current processor, held until release()
+    private Loaded acquire() {
+        while (true) {
+            Loaded l = current;
+            if (l.acquire()) return l;
+        }
+    }
+
+    private void search(HttpExchange ex) throws IOException {
+        long start = System.nanoTime();
+        // one processor for the whole request, even if /reload swaps it meanwhile
+        Loaded loaded = acquire();
+        try {
+            if (!ex.getRequestMethod().equals("GET")) {
+                send(ex, 405, "text/plain", "GET only\n", start);
+                return;
+            }
+            Map<String, String> params = params(ex.getRequestURI());
+            String q = params.get("q");
+            if (q == null || q.trim().isEmpty()) {
+                send(ex, 400, "text/plain", "missing q parameter\n", start);
+                return;
+            }
+            int k;
+            try {
+                k = Integer.parseInt(params.getOrDefault("k", "10"));
+            } catch (NumberFormatException e) {
+                send(ex, 400, "text/plain", "k must be a number\n", start);
+                return;
+            }
+            if (k < 0) {
+                send(ex, 400, "text/plain", "k must not be negative\n", start);
+                return;
+            }
+            String format = params.getOrDefault("format", "json");
+            boolean and = params.getOrDefault("op", "or").equals("and");
+
+            QueryProcessor p = loaded.qp;
+            // no ranking is longer than the collection, and the top-k heap is allocated at k
+            k = Math.min(k, p.numDocs());
+            QueryProcessor.Ranking ranked = and ? p.rank(q, k, true) : p.rank(q, k);
+            long micros = (System.nanoTime() - start) / 1000;
+            if (format.equals("trec")) {
+                send(ex, 200, "text/plain", trec(p, params.getOrDefault("id", "0"), ranked), start);
+            } else {
+                send(ex, 200, "application/json", json(p, q, ranked, micros), start);
+            }
+        } catch (QueryProcessor.NoPositionsException e) {
+            // the query asks for something this index cannot do, not a server fault
+            send(ex, 400, "text/plain", e.getMessage() + "\n", start);
+        } catch (RuntimeException | Error e) {
+            // an Error (OutOfMemoryError) too, or the client would wait for a reply forever
+            errors.increment();
+            send(ex, 500, "text/plain", "error: " + e + "\n", start);
+        } finally {
+            loaded.release();
+        }
+    }
+
+    private void stats(HttpExchange ex) throws IOException {
+        long start = System.nanoTime();
+        long n = requests.sum();
+        double mean = n == 0 ? 0.0 : (double) totalMicros.sum() / n;
+        String body = String.format(Locale.US,
+                "{\"requests\":%d,\"errors\":%d,\"mean_us\":%.1f,\"max_us\":%d,\"stem_cache\":\"%s\",\"query_cache\":\"%s\"}\n",
+                n, errors.sum(), mean, maxMicros.get(), escape(current.qp.stemSummary()),
+                escape(cache == null ? "off" : cache.summary()));
+        send(ex, 200, "application/json", body, start);
+    }
+
+    private void metrics(HttpExchange ex) throws IOException {
+        long start = System.nanoTime();
+        if (params(ex.getRequestURI()).getOrDefault("format", "json").equals("text")) {
+            send(ex, 200, "text/plain", Telemetry.text() + "\n", start);
+        } else {
+            send(ex, 200, "application/json", Telemetry.json() + "\n", start);
+        }
+    }
+
+    // Loads the index from the working directory again; one reload at a time.
+    private synchronized void reload(HttpExchange ex) throws IOException {
+        long start = System.nanoTime();
+        if (!ex.getRequestMethod().equals("POST")) {
+            send(ex, 405, "text/plain", "POST only\n", start);
+            return;
+        }
+        Loaded old = current;
+        long before = old.qp.generation();
+        try {
+            current = new Loaded(load());
+        } catch (IOException | RuntimeException e) {
+            errors.increment();
+            send(ex, 500, "text/plain", "reload failed, still serving the old index: " + e + "\n", start);
+            return;
+        }
+        // closed here, or by the last request still running on it
+        old.release();
+        String body = String.format(Locale.US, "{\"reloaded\":true,\"generation_changed\":%b,\"took_ms\":%d}\n",
+                current.qp.generation() != before, (System.nanoTime() - start) / 1_000_000);
+        send(ex, 200, "application/json", body, start);
+    }
+
+    // RESPONSES
+
+    // <QueryID> <DOCNO> <Rank> <Score>, as in the batch run files
+    private static String trec(QueryProcessor qp, String id, QueryProcessor.Ranking ranked) {
+        StringBuilder sb = new StringBuilder();
+        int rank = 1;
+        for (int i = 0; i < ranked.size; i++) {
+            if (ranked.scores[i] <= 0.0) continue;
+            sb.append(id).append('\t')
+              .append(qp.docNo(ranked.docIds[i])).append('\t')
+              .append(rank++).append('\t');
+            RunWriter.appendScore(sb, ranked.scores[i]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String json(QueryProcessor qp, String q, QueryProcessor.Ranking ranked, long micros) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"query\":\"").append(escape(q)).append("\",\"took_us\":").append(micros)
+          .append(",\"results\":[");
+        int rank = 1;
+        for (int i = 0; i < ranked.size; i++) {
+            if (ranked.scores[i] <= 0.0) continue;
+            if (rank > 1) sb.append(',');
+            sb.append("{\"rank\":").append(rank++)
+              .append(",\"docno\":\"").append(escape(qp.docNo(ranked.docIds[i])))
+              .append("\",\"score\":");
+            RunWriter.appendScore(sb, ranked.scores[i]).append('}');
+        }
+        sb.append("]}\n");
+        return sb.toString();
+    }
+
+    private void send(HttpExchange ex, int status, String type, String body, long start) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        long micros = (System.nanoTime() - start) / 1000;
+        ex.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        ex.getResponseHeaders().set("X-Query-Micros", String.valueOf(micros));
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+        requests.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    private static Map<String, String> params(URI uri) {
+        Map<String, String> params = new HashMap<>();
+        String raw = uri.getRawQuery();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            try {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                           URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                // ignore malformed
+            }
+        }
+        return params;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+}
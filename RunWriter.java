@@ -0,0 +1,121 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Locale;
+
+// TREC run file writer: one "<topic>\t<DOCNO>\t<rank>\t<score>" line per
+// result, byte for byte what BufferedWriter + String.format(Locale.US, "%.6f")
+// produced. Each line is encoded straight into a reused byte array and goes
+// out through a 1 MB channel buffer, so no String, Formatter or char->byte
+// encoder is involved per line.
+class RunWriter implements Closeable {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final FileChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+    private byte[] line = new byte[128];
+
+    RunWriter(String filename) throws IOException {
+        out = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void write(int topic, String docNo, int rank, double score) throws IOException {
+        int n = docNo.length();
+        if (line.length < n + 64) line = new byte[n + 64];
+        int p = putInt(topic, line, 0);
+        line[p++] = '\t';
+        for (int i = 0; i < n; i++) {
+            char c = docNo.charAt(i);
+            if (c >= 0x80) {
+                // not ASCII: leave the encoding to the platform charset, as FileWriter did
+                p = putBytes(docNo.substring(i).getBytes(), p);
+                break;
+            }
+            line[p++] = (byte) c;
+        }
+        line[p++] = '\t';
+        p = putInt(rank, line, p);
+        line[p++] = '\t';
+        p = putScore(score, p);
+        p = putBytes(NEWLINE, p);
+
+        if (buf.remaining() < p) flush();
+        buf.put(line, 0, p);
+    }
+
+    private int putBytes(byte[] b, int p) {
+        if (line.length < p + b.length + 64) line = java.util.Arrays.copyOf(line, p + b.length + 64);
+        System.arraycopy(b, 0, line, p, b.length);
+        return p + b.length;
+    }
+
+    private int putScore(double score, int p) {
+        long scaled = fixed6(score);
+        if (scaled < 0) return putBytes(String.format(Locale.US, "%.6f", score).getBytes(), p);
+        p = putInt(scaled / 1_000_000, line, p);
+        line[p++] = '.';
+        int frac = (int) (scaled % 1_000_000);
+        for (int div = 100_000; div > 0; div /= 10) {
+            line[p++] = (byte) ('0' + frac / div % 10);
+        }
+        return p;
+    }
+
+    // %.6f for QueryServer's responses, through the same fast path
+    static StringBuilder appendScore(StringBuilder sb, double score) {
+        long scaled = fixed6(score);
+        if (scaled < 0) return sb.append(String.format(Locale.US, "%.6f", score));
+        sb.append(scaled / 1_000_000).append('.');
+        int frac = (int) (scaled % 1_000_000);
+        for (int div = 100_000; div > 0; div /= 10) sb.append((char) ('0' + frac / div % 10));
+        return sb;
+    }
+
+    // score * 10^6 rounded as %.6f rounds it, or -1 when the fast path can't
+    // be sure. Formatter rounds half-up on the shortest decimal form of the
+    // double, which lies within an ulp of score; the scaled value carries about
+    // the same error. Away from a .5 tie both round the same way, so only
+    // near-ties (and negative, huge or non-finite scores) take the slow path.
+    private static long fixed6(double score) {
+        if (!(score >= 0.0 && score < 1e9)) return -1;
+        double v = score * 1e6;
+        long whole = (long) v;
+        double frac = v - whole;
+        if (Math.abs(frac - 0.5) <= v * 1e-15 + 1e-9) return -1;
+        return frac > 0.5 ? whole + 1 : whole;
+    }
+
+    private static int putInt(long v, byte[] dst, int p) {
+        if (v < 0) {
+            dst[p++] = '-';
+            v = -v;
+        }
+        int start = p;
+        do {
+            dst[p++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // digits came out reversed
+        for (int i = start, j = p - 1; i < j; i++, j--) {
+            byte t = dst[i];
+            dst[i] = dst[j];
+            dst[j] = t;
+        }
+        return p;
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,268 @@
+import java.util.function.IntFunction;
+
+// Ranking model used by QueryProcessor. A document's score is
+//
+//   finish(d, sum over query terms t of queryWeight(t) * w(t, d))
+//
+// with w(t, d) filled in by weights() for a run of postings of t at once, so
+// the evaluators keep their tight loops over primitive arrays: term-at-a-time
+// weighs whole lists into the dense accumulator, document-at-a-time one block
+// at a time as its iterators reach it, and top-k MaxScore uses bound() to skip
+// postings. finish() must be non-decreasing in the sum.
+interface Scorer {
+
+    // postings to score for termId, null if it has none
+    PostingList postings(int termId);
+
+    // weight of a term that occurs qtf times in the query; NaN leaves it out
+    double queryWeight(int termId, int qtf);
+
+    // w(t, d) for the postings [from, to) of pl (as returned by postings(termId))
+    // into out[0 .. to - from)
+    void weights(int termId, PostingList pl, int from, int to, double[] out);
+
+    // w(t, d) for every posting of pl into out[0 .. pl.size)
+    default void weights(int termId, PostingList pl, double[] out) {
+        weights(termId, pl, 0, pl.size, out);
+    }
+
+    // final score from the accumulated sum; NaN drops the document
+    double finish(int docId, double sum, double qNorm);
+
+    // upper bound of what one query term can add to a final score
+    double bound(int termId, double qWeight, double qNorm);
+
+    // Does weights() also accept any slice of the term's TEXT postings (one
+    // index block) in place of the list from postings()? Block iterators then
+    // weigh only the blocks a query decodes.
+    default boolean weighsBlocks() {
+        return true;
+    }
+
+    static Scorer create(String model, IntFunction<PostingList> text, IntFunction<PostingList> headline,
+                         IndexStats stats, double[] idf, double[] maxWeight, double k1, double b) {
+        switch (model) {
+            case "cosine":
+                return new Cosine(text, idf, stats.docNorm, maxWeight);
+            case "bm25":
+                return new Bm25(text, stats, k1, b);
+            case "bm25f":
+                return new Bm25f(text, headline, stats, k1, b, Bm25f.HEADLINE_WEIGHT);
+            default:
+                throw new IllegalArgumentException("Unknown model: " + model);
+        }
+    }
+
+    // ltc cosine: (1+log tf)*idf on both sides, divided by |d| and |q|.
+    class Cosine implements Scorer {
+        private final IntFunction<PostingList> postings;
+        private final double[] idf;
+        private final double[] docNorm;
+        private final double[] maxWeight;
+
+        Cosine(IntFunction<PostingList> postings, double[] idf, double[] docNorm, double[] maxWeight) {
+            this.postings = postings;
+            this.idf = idf;
+            this.docNorm = docNorm;
+            this.maxWeight = maxWeight;
+        }
+
+        @Override
+        public PostingList postings(int termId) {
+            return postings.apply(termId);
+        }
+
+        @Override
+        public double queryWeight(int termId, int qtf) {
+            double idfVal = termId < idf.length ? idf[termId] : Double.NaN;
+            return (1.0 + Math.log(qtf)) * idfVal;
+        }
+
+        @Override
+        public void weights(int termId, PostingList pl, int from, int to, double[] out) {
+            double idfVal = idf[termId];
+            int[] tfs = pl.tfs;
+            for (int i = from; i < to; i++) out[i - from] = (1.0 + Math.log(tfs[i])) * idfVal;
+        }
+
+        @Override
+        public double finish(int docId, double sum, double qNorm) {
+            if (docId >= docNorm.length || docNorm[docId] == 0.0) return Double.NaN;
+            return sum / (docNorm[docId] * qNorm);
+        }
+
+        @Override
+        public double bound(int termId, double qWeight, double qNorm) {
+            return qWeight / qNorm * maxWeight[termId];
+        }
+    }
+
+    // Okapi BM25 with the non-negative idf log(1 + (N - df + 0.5) / (df + 0.5)).
+    class Bm25 implements Scorer {
+        private final IntFunction<PostingList> postings;
+        private final double k1;
+        private final double[] idf;
+        private final int[] docLength;
+        // k1 * (1 - b + b * |d| / avg|d|) per docId
+        private final double[] lengthNorm;
+
+        Bm25(IntFunction<PostingList> postings, IndexStats stats, double k1, double b) {
+            this.postings = postings;
+            this.k1 = k1;
+            this.idf = bm25Idf(stats);
+            this.docLength = stats.docLength;
+            this.lengthNorm = new double[docLength.length];
+            double avg = stats.avgDocLength();
+            for (int d = 0; d < docLength.length; d++) {
+                lengthNorm[d] = k1 * (1.0 - b + b * docLength[d] / avg);
+            }
+        }
+
+        @Override
+        public PostingList postings(int termId) {
+            return postings.apply(termId);
+        }
+
+        @Override
+        public double queryWeight(int termId, int qtf) {
+            return termId < idf.length && !Double.isNaN(idf[termId]) ? qtf : Double.NaN;
+        }
+
+        @Override
+        public void weights(int termId, PostingList pl, int from, int to, double[] out) {
+            double scale = idf[termId] * (k1 + 1.0);
+            int[] docIds = pl.docIds;
+            int[] tfs = pl.tfs;
+            for (int i = from; i < to; i++) {
+                int docId = docIds[i];
+                double norm = docId < lengthNorm.length ? lengthNorm[docId] : k1;
+                out[i - from] = scale * tfs[i] / (tfs[i] + norm);
+            }
+        }
+
+        @Override
+        public double finish(int docId, double sum, double qNorm) {
+            return docId < docLength.length && docLength[docId] > 0 ? sum : Double.NaN;
+        }
+
+        @Override
+        public double bound(int termId, double qWeight, double qNorm) {
+            // tf / (tf + norm) < 1
+            return qWeight * idf[termId] * (k1 + 1.0);
+        }
+    }
+
+    // BM25F over the TEXT and HEADLINE fields: each field's tf is length-
+    // normalised and weighted, the sum is saturated once with k1. idf comes
+    // from the TEXT field's df.
+    class Bm25f implements Scorer {
+        static final double HEADLINE_WEIGHT = 2.0;
+
+        private final IntFunction<PostingList> text;
+        private final IntFunction<PostingList> headline;
+        private final double k1;
+        private final double headWeight;
+        private final double[] idf;
+        private final int[] docLength;
+        // 1 - b + b * len / avg len per docId and field
+        private final double[] textNorm;
+        private final double[] headNorm;
+
+        Bm25f(IntFunction<PostingList> text, IntFunction<PostingList> headline, IndexStats stats,
+              double k1, double b, double headWeight) {
+            this.text = text;
+            this.headline = headline;
+            this.k1 = k1;
+            this.headWeight = headWeight;
+            this.idf = bm25Idf(stats);
+            this.docLength = stats.docLength;
+            int n = docLength.length;
+            this.textNorm = new double[n];
+            this.headNorm = new double[n];
+            double avgText = stats.avgDocLength();
+            double avgHead = Math.max(stats.avgHeadLength(), 1.0);
+            for (int d = 0; d < n; d++) {
+                textNorm[d] = 1.0 - b + b * docLength[d] / avgText;
+                headNorm[d] = 1.0 - b + b * stats.headLength[d] / avgHead;
+            }
+        }
+
+        // union of both fields' postings; tfs holds the TEXT tf (0 if absent)
+        private static class FieldPostings extends PostingList {
+            final int[] headTfs;
+
+            FieldPostings(int[] docIds, int[] tfs, int[] headTfs, int size) {
+                super(docIds, tfs, size);
+                this.headTfs = headTfs;
+            }
+        }
+
+        @Override
+        public PostingList postings(int termId) {
+            PostingList t = text.apply(termId);
+            PostingList h = headline.apply(termId);
+            int tn = t == null ? 0 : t.size;
+            int hn = h == null ? 0 : h.size;
+            if (tn + hn == 0) return null;
+
+            int[] docIds = new int[tn + hn];
+            int[] tfs = new int[tn + hn];
+            int[] headTfs = new int[tn + hn];
+            int i = 0, j = 0, n = 0;
+            while (i < tn || j < hn) {
+                int td = i < tn ? t.docIds[i] : Integer.MAX_VALUE;
+                int hd = j < hn ? h.docIds[j] : Integer.MAX_VALUE;
+                docIds[n] = Math.min(td, hd);
+                if (td == docIds[n]) tfs[n] = t.tfs[i++];
+                if (hd == docIds[n]) headTfs[n] = h.tfs[j++];
+                n++;
+            }
+            return new FieldPostings(docIds, tfs, headTfs, n);
+        }
+
+        @Override
+        public double queryWeight(int termId, int qtf) {
+            return termId < idf.length && !Double.isNaN(idf[termId]) ? qtf : Double.NaN;
+        }
+
+        // needs the merged TEXT + HEADLINE list from postings()
+        @Override
+        public boolean weighsBlocks() {
+            return false;
+        }
+
+        @Override
+        public void weights(int termId, PostingList pl, int from, int to, double[] out) {
+            FieldPostings fp = (FieldPostings) pl;
+            double scale = idf[termId] * (k1 + 1.0);
+            for (int i = from; i < to; i++) {
+                int docId = fp.docIds[i];
+                if (docId >= textNorm.length) {
+                    out[i - from] = 0.0;
+                    continue;
+                }
+                double tf = fp.tfs[i] / textNorm[docId] + headWeight * fp.headTfs[i] / headNorm[docId];
+                out[i - from] = scale * tf / (k1 + tf);
+            }
+        }
+
+        @Override
+        public double finish(int docId, double sum, double qNorm) {
+            return docId < docLength.length && docLength[docId] > 0 ? sum : Double.NaN;
+        }
+
+        @Override
+        public double bound(int termId, double qWeight, double qNorm) {
+            return qWeight * idf[termId] * (k1 + 1.0);
+        }
+    }
+
+    static double[] bm25Idf(IndexStats stats) {
+        double[] idf = new double[stats.df.length];
+        for (int t = 0; t < idf.length; t++) {
+            int df = stats.df[t];
+            idf[t] = df == 0 ? Double.NaN : Math.log(1.0 + (stats.numDocs - df + 0.5) / (df + 0.5));
+        }
+        return idf;
+    }
+}
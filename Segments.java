@@ -0,0 +1,380 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Index segments added by Indexer -append after the full build, listed in a
+// manifest next to the base index (inverted_index.segments):
+//
+//   generation <n>
+//   <name> <numDocs>      one line per segment, in docId order
+//
+// Segment <name> consists of <name>.bin, <name>.headline.bin and
+// <name>.stats in the formats of the base index. Each segment's docIds start
+// past those of the base and of every earlier segment, so a term's postings
+// over the whole index are just its per-segment lists concatenated. The
+// manifest is written aside and renamed over the old one, so an append or a
+// merge becomes visible (and the generation moves on) all at once.
+class Segments implements Closeable {
+
+    // a merge combines this many neighbouring segments of the same size level
+    static final int MERGE_FACTOR = 4;
+
+    private final String manifest;
+    private long generation;
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> docCounts = new ArrayList<>();
+
+    // per segment, filled by open()
+    private BinaryIndex[] text = new BinaryIndex[0];
+    private BinaryIndex[] headline = new BinaryIndex[0];
+
+    private Segments(String manifest) {
+        this.manifest = manifest;
+    }
+
+    // The segments listed in manifest; none (generation 0) if it does not exist.
+    static Segments read(String manifest) throws IOException {
+        Segments s = new Segments(manifest);
+        if (!new File(manifest).exists()) return s;
+        try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+            String line = br.readLine();
+            if (line == null || !line.startsWith("generation ")) {
+                throw new IOException("Not a segments manifest: " + manifest);
+            }
+            s.generation = Long.parseLong(line.substring("generation ".length()).trim());
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\\s+");
+                s.names.add(parts[0]);
+                s.docCounts.add(Integer.parseInt(parts[1]));
+            }
+        }
+        return s;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    String describe() {
+        StringBuilder sb = new StringBuilder("generation " + generation + ", " + names.size() + " segment(s)");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(i == 0 ? ": " : ", ").append(names.get(i)).append(" (").append(docCounts.get(i)).append(" docs)");
+        }
+        return sb.toString();
+    }
+
+    // file prefix for the next segment of the index whose files start with base
+    String newSegmentName(String base) {
+        return base + "_seg" + (generation + 1);
+    }
+
+    // Publishes a new segment after the existing ones. Each of staged was
+    // written aside as <file>.new; they are renamed over their files just
+    // before the manifest, so readers never see the segment without them.
+    // They only add to what was there, so a reader of the old manifest that
+    // sees them anyway finds nothing missing.
+    void add(String name, int numDocs, String... staged) throws IOException {
+        for (String file : staged) {
+            Files.move(Paths.get(file + ".new"), Paths.get(file),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        names.add(name);
+        docCounts.add(numDocs);
+        commit();
+    }
+
+    private void commit() throws IOException {
+        generation++;
+        File tmp = new File(manifest + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+            bw.write("generation " + generation);
+            bw.newLine();
+            for (int i = 0; i < names.size(); i++) {
+                bw.write(names.get(i) + " " + docCounts.get(i));
+                bw.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), Paths.get(manifest),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Drops every segment and the manifest, e.g. before a full rebuild.
+    void deleteAll() {
+        for (String name : names) deleteFiles(name);
+        new File(manifest).delete();
+        names.clear();
+        docCounts.clear();
+    }
+
+    private static void deleteFiles(String name) {
+        new File(name + ".bin").delete();
+        new File(name + ".headline.bin").delete();
+        new File(name + ".stats").delete();
+    }
+
+    // STATISTICS
+
+    IndexStats stats(int i) throws IOException {
+        return IndexStats.read(names.get(i) + ".stats");
+    }
+
+    // Statistics of the base plus every segment: document arrays side by
+    // side, df summed and idf recomputed for the combined N. Stored norms are
+    // kept as they are; each was computed with the idf current when its
+    // segment was written or last merged.
+    IndexStats combine(IndexStats base) throws IOException {
+        List<IndexStats> parts = new ArrayList<>();
+        parts.add(base);
+        for (int i = 0; i < names.size(); i++) parts.add(stats(i));
+        return combine(parts);
+    }
+
+    private static IndexStats combine(List<IndexStats> parts) {
+        int docBase = parts.get(0).docBase, docEnd = 0, numTermIds = 0, numDocs = 0;
+        long totalLength = 0;
+        for (IndexStats p : parts) {
+            docEnd = Math.max(docEnd, p.docEnd());
+            numTermIds = Math.max(numTermIds, p.df.length);
+            numDocs += p.numDocs;
+            totalLength += p.totalLength;
+        }
+        int[] docLength = new int[docEnd - docBase];
+        int[] headLength = new int[docEnd - docBase];
+        double[] docNorm = new double[docEnd - docBase];
+        int[] df = new int[numTermIds];
+        for (IndexStats p : parts) {
+            int at = p.docBase - docBase;
+            System.arraycopy(p.docLength, 0, docLength, at, p.docLength.length);
+            System.arraycopy(p.headLength, 0, headLength, at, p.headLength.length);
+            System.arraycopy(p.docNorm, 0, docNorm, at, p.docNorm.length);
+            for (int t = 0; t < p.df.length; t++) df[t] += p.df[t];
+        }
+        return new IndexStats(docBase, numDocs, totalLength, docLength, headLength, docNorm,
+                df, IndexStats.idf(df, numDocs));
+    }
+
+    // QUERYING
+
+    void open() throws IOException {
+        text = new BinaryIndex[names.size()];
+        headline = new BinaryIndex[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            text[i] = BinaryIndex.open(names.get(i) + ".bin");
+            File h = new File(names.get(i) + ".headline.bin");
+            if (h.exists()) headline[i] = BinaryIndex.open(h.getPath());
+        }
+    }
+
+    // Block cursors over termId's TEXT postings, one per segment that has
+    // the term, in docId order; null if a segment file has no blocks.
+    List<BinaryIndex.Cursor> cursors(int termId) {
+        List<BinaryIndex.Cursor> cursors = new ArrayList<>();
+        for (BinaryIndex b : text) {
+            if (b.codec() == null) return null;
+            BinaryIndex.Cursor c = b.cursor(termId);
+            if (c != null) cursors.add(c);
+        }
+        return cursors;
+    }
+
+    // base (the base index's list, may be null) followed by termId's postings in every segment
+    PostingList postings(PostingList base, int termId) {
+        return concat(base, text, termId);
+    }
+
+    PostingList headlinePostings(PostingList base, int termId) {
+        return concat(base, headline, termId);
+    }
+
+    private static PostingList concat(PostingList first, BinaryIndex[] parts, int termId) {
+        PostingList[] lists = new PostingList[parts.length + 1];
+        lists[0] = first;
+        int total = first == null ? 0 : first.size, nonEmpty = first == null ? 0 : 1;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] == null) continue;
+            lists[i + 1] = parts[i].postings(termId);
+            if (lists[i + 1] == null) continue;
+            total += lists[i + 1].size;
+            nonEmpty++;
+        }
+        if (nonEmpty == 0) return null;
+        if (nonEmpty == 1) {
+            for (PostingList pl : lists) if (pl != null) return pl;
+        }
+        int[] docIds = new int[total];
+        int[] tfs = new int[total];
+        int n = 0;
+        for (PostingList pl : lists) {
+            if (pl == null) continue;
+            System.arraycopy(pl.docIds, 0, docIds, n, pl.size);
+            System.arraycopy(pl.tfs, 0, tfs, n, pl.size);
+            n += pl.size;
+        }
+        return new PostingList(docIds, tfs, total);
+    }
+
+    // MaxScore bounds over the base and all segments. A stored bound is the
+    // max of (1+log tf)*idf/|d| under the idf its part was written with, so
+    // dividing that idf out and multiplying the current one in keeps it an
+    // upper bound. baseBound / baseIdf are the base index's own values.
+    double[] maxWeights(double[] baseBound, double[] baseIdf, double[] idf) throws IOException {
+        double[] ratio = new double[idf.length];
+        rescale(ratio, baseBound, baseIdf);
+        for (int i = 0; i < names.size(); i++) {
+            double[] partIdf = stats(i).idf;
+            double[] bound = new double[partIdf.length];
+            for (int e = 0; e < text[i].numTerms(); e++) {
+                int termId = text[i].termIdAt(e);
+                if (termId < bound.length) bound[termId] = text[i].maxWeightAt(e);
+            }
+            rescale(ratio, bound, partIdf);
+        }
+        double[] maxWeight = new double[idf.length];
+        for (int t = 0; t < idf.length; t++) {
+            // idf 0 now means the term adds nothing to any score
+            if (Double.isNaN(idf[t]) || idf[t] == 0.0) continue;
+            maxWeight[t] = Math.nextUp(ratio[t] * idf[t]);
+        }
+        return maxWeight;
+    }
+
+    private static void rescale(double[] ratio, double[] bound, double[] idf) {
+        int n = Math.min(ratio.length, Math.min(bound.length, idf.length));
+        for (int t = 0; t < n; t++) {
+            if (Double.isNaN(idf[t])) continue;
+            // a term that was in every document has bound 0 and nothing to scale back
+            double r = idf[t] > 0.0 ? Math.nextUp(bound[t] / idf[t]) : Double.POSITIVE_INFINITY;
+            ratio[t] = Math.max(ratio[t], r);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (BinaryIndex b : text) if (b != null) b.close();
+        for (BinaryIndex b : headline) if (b != null) b.close();
+    }
+
+    // MERGING
+
+    // Log-style merge policy: a segment's level is log base MERGE_FACTOR of
+    // its document count, and whenever MERGE_FACTOR neighbouring segments share
+    // a level they are merged into one, which can cascade into the next level.
+    // Only neighbours are merged, so docIds stay in segment order; the base
+    // index is never touched. Returns the number of merges.
+    int maybeMerge(String base, IndexStats baseStats) throws IOException {
+        int merges = 0;
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i + MERGE_FACTOR <= names.size() && !merged; i++) {
+                int level = level(docCounts.get(i));
+                int j = i + 1;
+                while (j < i + MERGE_FACTOR && level(docCounts.get(j)) == level) j++;
+                if (j == i + MERGE_FACTOR) {
+                    merge(i, j, base, baseStats);
+                    merges++;
+                    merged = true;
+                }
+            }
+        }
+        return merges;
+    }
+
+    // Merges everything into one segment.
+    boolean mergeAll(String base, IndexStats baseStats) throws IOException {
+        if (names.size() < 2) return false;
+        merge(0, names.size(), base, baseStats);
+        return true;
+    }
+
+    private static int level(int numDocs) {
+        int level = 0;
+        for (long n = MERGE_FACTOR; n <= numDocs; n *= MERGE_FACTOR) level++;
+        return level;
+    }
+
+    // Replaces segments [from, to) by one, with norms and bounds recomputed
+    // under the idf of the whole index as it is now.
+    private void merge(int from, int to, String base, IndexStats baseStats) throws IOException {
+        List<IndexStats> all = new ArrayList<>();
+        all.add(baseStats);
+        for (int i = 0; i < names.size(); i++) all.add(stats(i));
+        double[] idf = combine(all).idf;
+        IndexStats merged = combine(all.subList(from + 1, to + 1));
+        int docBase = merged.docBase;
+
+        BinaryIndex[] parts = new BinaryIndex[to - from];
+        BinaryIndex[] heads = new BinaryIndex[to - from];
+        String name = newSegmentName(base);
+        try {
+            Set<Integer> terms = new TreeSet<>();
+            for (int i = from; i < to; i++) {
+                parts[i - from] = BinaryIndex.open(names.get(i) + ".bin");
+                File h = new File(names.get(i) + ".headline.bin");
+                if (h.exists()) heads[i - from] = BinaryIndex.open(h.getPath());
+                for (int e = 0; e < parts[i - from].numTerms(); e++) terms.add(parts[i - from].termIdAt(e));
+            }
+
+            // pass 1: |d| under the current idf
+            double[] sumSq = new double[merged.docLength.length];
+            for (int termId : terms) {
+                PostingList pl = concat(null, parts, termId);
+                double idfVal = idf[termId];
+                for (int i = 0; i < pl.size; i++) {
+                    double w = (1.0 + Math.log(pl.tfs[i])) * idfVal;
+                    sumSq[pl.docIds[i] - docBase] += w * w;
+                }
+            }
+            double[] docNorm = new double[sumSq.length];
+            for (int d = 0; d < sumSq.length; d++) docNorm[d] = Math.sqrt(sumSq[d]);
+
+            // pass 2: concatenated postings with their MaxScore bounds
+            // merged segments keep the codec their documents were written with
+            PostingsCodec codec = parts[0].codec();
+            try (BinaryIndex.Writer out = new BinaryIndex.Writer(name + ".bin", merged.numDocs, codec)) {
+                for (int termId : terms) {
+                    PostingList pl = concat(null, parts, termId);
+                    double max = 0.0;
+                    for (int i = 0; i < pl.size; i++) {
+                        double dn = docNorm[pl.docIds[i] - docBase];
+                        if (dn > 0.0) max = Math.max(max, (1.0 + Math.log(pl.tfs[i])) * idf[termId] / dn);
+                    }
+                    out.addTerm(termId, pl.docIds, pl.tfs, pl.size, max);
+                }
+            }
+            Set<Integer> headTerms = new TreeSet<>();
+            for (BinaryIndex h : heads) {
+                if (h == null) continue;
+                for (int e = 0; e < h.numTerms(); e++) headTerms.add(h.termIdAt(e));
+            }
+            try (BinaryIndex.Writer out = new BinaryIndex.Writer(name + ".headline.bin", merged.numDocs, codec)) {
+                for (int termId : headTerms) {
+                    PostingList pl = concat(null, heads, termId);
+                    out.addTerm(termId, pl.docIds, pl.tfs, pl.size, 0.0);
+                }
+            }
+            new IndexStats(docBase, merged.numDocs, merged.totalLength, merged.docLength, merged.headLength,
+                    docNorm, merged.df, idf).write(name + ".stats");
+        } finally {
+            for (BinaryIndex b : parts) if (b != null) b.close();
+            for (BinaryIndex b : heads) if (b != null) b.close();
+        }
+
+        // publish first, then drop the merged segments' files
+        List<String> old = new ArrayList<>(names.subList(from, to));
+        int numDocs = 0;
+        for (int i = from; i < to; i++) numDocs += docCounts.get(i);
+        names.subList(from, to).clear();
+        docCounts.subList(from, to).clear();
+        names.add(from, name);
+        docCounts.add(from, numDocs);
+        commit();
+        for (String n : old) deleteFiles(n);
+    }
+}
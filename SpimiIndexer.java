@@ -0,0 +1,294 @@
+import java.io.*;
+import java.util.*;
+
+// Single-pass in-memory indexing (SPIMI) under a memory budget.
+//
+// Documents are added one at a time: the forward index line is written
+// straight to disk and the postings are collected per term. When the
+// collected postings exceed the budget they are sorted and flushed as a
+// run file; finish() does a streaming k-way merge of the runs into the
+// final inverted_index.txt / .bin and writes the .stats file, first merging
+// groups of MERGE_FACTOR runs into longer ones while there are more. Heap
+// use is bounded by the budget plus per-term and per-document counters, and
+// open files by MERGE_FACTOR, independent of collection size.
+class SpimiIndexer {
+
+    // rough heap cost of one posting and of one term's builder + map entry
+    private static final int POSTING_BYTES = 8;
+    private static final int TERM_BYTES = 96;
+    // most runs open at once when merging, each with a 64 KB buffer
+    static final int MERGE_FACTOR = 64;
+
+    private final long budget;
+    private final String forwardFile;
+    private final BufferedWriter forwardOut;
+    private final PostingsCodec codec;
+    private final List<File> runs = new ArrayList<>();
+    // runs flushed from memory, before any intermediate merges
+    private int runsWritten = 0;
+
+    private Map<Integer, PostingList.Builder> block = new HashMap<>();
+    private long blockBytes = 0;
+    private long totalPostings = 0;
+
+    // termID -> df, needed for idf before the merge starts
+    private int[] df = new int[1024];
+    private int numDocs = 0;
+
+    SpimiIndexer(long budgetBytes, String forwardFile, PostingsCodec codec) throws IOException {
+        this.budget = budgetBytes;
+        this.forwardFile = forwardFile;
+        this.codec = codec;
+        this.forwardOut = new BufferedWriter(new FileWriter(forwardFile));
+    }
+
+    int runCount() {
+        return runsWritten;
+    }
+
+    long postingCount() {
+        return totalPostings;
+    }
+
+    // freq must iterate in ascending termID order (TreeMap)
+    void addDocument(int docID, Map<Integer, Integer> freq) throws IOException {
+        if (freq.isEmpty()) return;
+        numDocs++;
+
+        forwardOut.write(docID + ": ");
+        for (Map.Entry<Integer, Integer> e : freq.entrySet()) {
+            int termID = e.getKey();
+            int tf = e.getValue();
+            forwardOut.write(termID + ":" + tf + "; ");
+
+            PostingList.Builder b = block.get(termID);
+            if (b == null) {
+                b = new PostingList.Builder(4);
+                block.put(termID, b);
+                blockBytes += TERM_BYTES;
+            }
+            b.add(docID, tf);
+            blockBytes += POSTING_BYTES;
+            totalPostings++;
+
+            if (termID >= df.length) df = Arrays.copyOf(df, Math.max(termID + 1, df.length * 2));
+            df[termID]++;
+        }
+        forwardOut.newLine();
+
+        if (blockBytes >= budget) flushRun();
+    }
+
+    // Writes the current block as a run: terms ascending, each list sorted by docID.
+    // Record layout: termID, count, then count (docID, tf) pairs.
+    private void flushRun() throws IOException {
+        if (block.isEmpty()) return;
+        File run = File.createTempFile("spimi", ".run");
+        run.deleteOnExit();
+
+        int[] terms = new int[block.size()];
+        int n = 0;
+        for (int t : block.keySet()) terms[n++] = t;
+        Arrays.sort(terms);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (int t : terms) {
+                PostingList pl = block.get(t).build();
+                long[] packed = pack(pl.docIds, pl.tfs, pl.size);
+                out.writeInt(t);
+                out.writeInt(pl.size);
+                for (long p : packed) {
+                    out.writeInt((int) (p >>> 32));
+                    out.writeInt((int) p);
+                }
+            }
+        }
+        runs.add(run);
+        runsWritten++;
+        block = new HashMap<>();
+        blockBytes = 0;
+    }
+
+    // (docID, tf) pairs as longs sorted by docID
+    private static long[] pack(int[] docIds, int[] tfs, int size) {
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) packed[i] = ((long) docIds[i] << 32) | (tfs[i] & 0xFFFFFFFFL);
+        Arrays.sort(packed);
+        return packed;
+    }
+
+    private static class RunReader implements Closeable {
+        final DataInputStream in;
+        int termID;
+        int count;
+
+        RunReader(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                termID = in.readInt();
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+            count = in.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // one term's postings from every merged run, packed (docID << 32 | tf) and sorted by docID
+    private interface TermSink {
+        void term(int termID, long[] postings, int n) throws IOException;
+    }
+
+    void finish(String invertedFile, String binaryFile, String statsFile) throws IOException {
+        flushRun();
+        forwardOut.close();
+
+        IndexStats stats = readStats();
+        stats.write(statsFile);
+        double[] idf = stats.idf;
+        double[] docNorm = stats.docNorm;
+
+        // at most MERGE_FACTOR runs are open at once: more are first merged a
+        // group at a time into longer runs, until one pass can take them all
+        while (runs.size() > MERGE_FACTOR) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MERGE_FACTOR) {
+                merged.add(mergeToRun(runs.subList(i, Math.min(runs.size(), i + MERGE_FACTOR))));
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+
+        try (BufferedWriter text = new BufferedWriter(new FileWriter(invertedFile));
+             BinaryIndex.Writer bin = new BinaryIndex.Writer(binaryFile, numDocs, codec)) {
+            merge(runs, (termID, merged, n) -> {
+                int[] docIds = new int[n];
+                int[] tfs = new int[n];
+                double maxWeight = 0.0;
+                text.write(termID + ": ");
+                for (int i = 0; i < n; i++) {
+                    docIds[i] = (int) (merged[i] >>> 32);
+                    tfs[i] = (int) merged[i];
+                    text.write(docIds[i] + ":" + tfs[i] + "; ");
+                    double dn = docIds[i] < docNorm.length ? docNorm[docIds[i]] : 0.0;
+                    if (dn > 0.0) maxWeight = Math.max(maxWeight, (1.0 + Math.log(tfs[i])) * idf[termID] / dn);
+                }
+                text.newLine();
+                bin.addTerm(termID, docIds, tfs, n, maxWeight);
+            });
+        }
+        for (File run : runs) run.delete();
+    }
+
+    // Merges group into one run of the same layout and deletes its runs.
+    private static File mergeToRun(List<File> group) throws IOException {
+        if (group.size() == 1) return group.get(0);
+        File run = File.createTempFile("spimi", ".run");
+        run.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            merge(group, (termID, merged, n) -> {
+                out.writeInt(termID);
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeInt((int) (merged[i] >>> 32));
+                    out.writeInt((int) merged[i]);
+                }
+            });
+        }
+        for (File f : group) f.delete();
+        return run;
+    }
+
+    // Streaming k-way merge of runs: every term in ascending termID order,
+    // with its postings from all of them.
+    private static void merge(List<File> runs, TermSink sink) throws IOException {
+        PriorityQueue<RunReader> heap = new PriorityQueue<>(Comparator.comparingInt((RunReader r) -> r.termID));
+        // every reader, so a failed merge still closes the runs it opened
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (File run : runs) {
+                RunReader r = new RunReader(run);
+                readers.add(r);
+                if (r.next()) heap.add(r);
+            }
+            long[] merged = new long[16];
+            while (!heap.isEmpty()) {
+                int termID = heap.peek().termID;
+                int n = 0;
+                // gather this term's postings from every run that has it
+                while (!heap.isEmpty() && heap.peek().termID == termID) {
+                    RunReader r = heap.poll();
+                    if (n + r.count > merged.length) merged = Arrays.copyOf(merged, Math.max(n + r.count, merged.length * 2));
+                    for (int i = 0; i < r.count; i++) {
+                        int docID = r.in.readInt();
+                        int tf = r.in.readInt();
+                        merged[n++] = ((long) docID << 32) | (tf & 0xFFFFFFFFL);
+                    }
+                    if (r.next()) heap.add(r);
+                }
+                Arrays.sort(merged, 0, n);
+                sink.term(termID, merged, n);
+            }
+        } finally {
+            for (RunReader r : readers) r.close();
+        }
+    }
+
+    // Streams the forward index written during indexing back in to get |d| and
+    // the length of every document; needs idf, which is only known once every
+    // document is in.
+    private IndexStats readStats() throws IOException {
+        double[] idf = IndexStats.idf(df, numDocs);
+        int[] docLength = new int[1024];
+        double[] docNorm = new double[1024];
+        long totalLength = 0;
+        int maxDocId = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(forwardFile))) {
+            String line;
+            Map<Integer, Integer> freq = new TreeMap<>();
+            while ((line = br.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                int docID = Integer.parseInt(line.substring(0, colon).trim());
+                freq.clear();
+                int pos = colon + 1;
+                while (true) {
+                    int sep = line.indexOf(':', pos);
+                    if (sep < 0) break;
+                    int end = line.indexOf(';', sep);
+                    int termID = Integer.parseInt(line.substring(pos, sep).trim());
+                    int tf = Integer.parseInt(line.substring(sep + 1, end).trim());
+                    freq.put(termID, tf);
+                    pos = end + 1;
+                }
+                if (docID >= docNorm.length) {
+                    int n = Math.max(docID + 1, docNorm.length * 2);
+                    docNorm = Arrays.copyOf(docNorm, n);
+                    docLength = Arrays.copyOf(docLength, n);
+                }
+                docNorm[docID] = IndexStats.norm(freq, idf);
+                docLength[docID] = IndexStats.length(freq);
+                totalLength += docLength[docID];
+                maxDocId = Math.max(maxDocId, docID);
+            }
+        }
+        int maxTermId = df.length - 1;
+        while (maxTermId > 0 && df[maxTermId] == 0) maxTermId--;
+        // the HEADLINE field is only indexed by the in-memory build
+        return new IndexStats(numDocs, totalLength,
+                Arrays.copyOf(docLength, maxDocId + 1), new int[maxDocId + 1],
+                Arrays.copyOf(docNorm, maxDocId + 1),
+                Arrays.copyOf(df, maxTermId + 1), Arrays.copyOf(idf, maxTermId + 1));
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// Memoizes surface form -> stem in front of the Porter stemmer.
+//
+// The cache is a fixed-size, direct-mapped table of immutable entries: a
+// lookup is one hash, one array read and a char compare, with no allocation
+// on a hit. A miss stems the word and overwrites whatever entry occupied the
+// slot, so the size is bounded. Entries are immutable (final fields), which
+// makes the racy reads and writes from several indexing threads safe: a reader
+// sees either the old entry or the new one, never a torn one.
+class StemCache {
+
+    private static final class Entry {
+        final char[] key;
+        final String stem;
+
+        Entry(char[] key, String stem) {
+            this.key = key;
+            this.stem = stem;
+        }
+    }
+
+    // Porter keeps per-word state, so every thread stems with its own instance
+    private final ThreadLocal<Porter> stemmers = ThreadLocal.withInitial(Porter::new);
+    private final Entry[] table;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // capacity is rounded up to a power of two
+    StemCache(int capacity) {
+        int n = 1;
+        while (n < capacity) n <<= 1;
+        this.table = new Entry[n];
+        this.mask = n - 1;
+    }
+
+    String stem(char[] buf, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + buf[off + i];
+        int slot = (h ^ (h >>> 16)) & mask;
+
+        Entry e = table[slot];
+        if (e != null && e.key.length == len && Arrays.equals(e.key, 0, len, buf, off, off + len)) {
+            hits.increment();
+            return e.stem;
+        }
+        misses.increment();
+        char[] key = Arrays.copyOfRange(buf, off, off + len);
+        char[] work = key.clone();
+        String stem = new String(work, 0, stemmers.get().stem(work, len));
+        table[slot] = new Entry(key, stem);
+        return stem;
+    }
+
+    String stem(String word) {
+        return stem(word.toCharArray(), 0, word.length());
+    }
+
+    // Seeds the cache with the words of textFile (topics, a sample of the
+    // collection) as the tokenizer yields them: the surface forms later
+    // lookups probe, not their stems. Stopwords are never stemmed and are
+    // skipped. Seeding stops once half the table has been filled, since in a
+    // direct-mapped table more words would mostly evict each other.
+    void prewarm(String textFile, boolean digits, CharArrayMap stopwords) throws IOException {
+        String text = new String(Files.readAllBytes(new File(textFile).toPath()), StandardCharsets.ISO_8859_1);
+        Tokenizer tok = new Tokenizer(digits).reset(text);
+        int seeded = 0;
+        while (seeded < table.length / 2 && tok.next()) {
+            if (stopwords.contains(tok.buffer(), 0, tok.length())) continue;
+            long before = misses.sum();
+            stem(tok.buffer(), 0, tok.length());
+            if (misses.sum() > before) seeded++;
+        }
+        hits.reset();
+        misses.reset();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    String summary() {
+        long h = hits(), m = misses();
+        double rate = h + m == 0 ? 0.0 : 100.0 * h / (h + m);
+        return String.format(java.util.Locale.US, "Stem cache: %d hits, %d misses (%.1f%% hit rate)", h, m, rate);
+    }
+}
@@ -0,0 +1,253 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+// Process-wide counters and latency histograms for the indexing and query
+// hot paths. Updates are LongAdder increments made once per document, per
+// postings list or per query, never per token or posting, so they stay on
+// in production runs. The values are readable three ways: as attributes of
+// the JMX bean ir:type=Telemetry (jconsole, VisualVM), as a periodic text
+// or JSON line dumped to stderr (-metrics <seconds> [-metricsjson]), and
+// from QueryServer's /metrics.
+final class Telemetry {
+
+    // indexing: Indexer.processDocument
+    static final LongAdder docsIndexed = new LongAdder();
+    static final LongAdder tokensIndexed = new LongAdder();
+    static final LongAdder indexNanos = new LongAdder();
+    // bytes read from collection files and decoded from the binary index
+    static final LongAdder collectionBytes = new LongAdder();
+    static final LongAdder postingsBytes = new LongAdder();
+    // querying: QueryProcessor.rank
+    static final LongAdder queries = new LongAdder();
+    static final LongAdder postingsDecoded = new LongAdder();
+    // documents in the term-at-a-time accumulator per query
+    static final LongAdder accumulatorDocs = new LongAdder();
+    static final LongAccumulator accumulatorMax = new LongAccumulator(Long::max, 0);
+    static final Histogram queryNanos = new Histogram();
+
+    private static final long START = System.nanoTime();
+    private static final List<StemCache> stemCaches = new CopyOnWriteArrayList<>();
+    private static final List<QueryCache> queryCaches = new CopyOnWriteArrayList<>();
+    private static boolean jmx = false;
+
+    private Telemetry() {
+    }
+
+    // includes the cache's hits and misses in stem_hit_rate
+    static void register(StemCache cache) {
+        stemCaches.add(cache);
+    }
+
+    // for a cache whose processor is closed
+    static void unregister(StemCache cache) {
+        stemCaches.remove(cache);
+    }
+
+    // includes the cache in query_cache_*; registering it again is a no-op
+    static void register(QueryCache cache) {
+        if (!queryCaches.contains(cache)) queryCaches.add(cache);
+    }
+
+    // Log-linear histogram: 8 sub-buckets per power of two, so a percentile
+    // is reported to within 12.5% at any magnitude, with a fixed 4 KB table
+    // and one atomic increment per sample.
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucket(value));
+            max.accumulate(value);
+        }
+
+        private static int bucket(long v) {
+            if (v < (1 << SUB_BITS)) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        // largest value that falls into bucket b
+        private static long upper(int b) {
+            if (b < (1 << SUB_BITS)) return b;
+            int exp = (b >>> SUB_BITS) + SUB_BITS - 1;
+            long sub = b & ((1 << SUB_BITS) - 1);
+            return ((1L << SUB_BITS | sub) + 1 << (exp - SUB_BITS)) - 1;
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+            return n;
+        }
+
+        // value at quantile q (0..1): the upper edge of its bucket, capped at the max seen
+        long percentile(double q) {
+            long n = count();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(upper(i), max.get());
+            }
+            return max.get();
+        }
+
+        long max() {
+            return max.get();
+        }
+    }
+
+    // Current values, in a fixed order; rates are per second of processDocument
+    // time summed over indexing threads.
+    static Map<String, Number> snapshot() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("uptime_s", (System.nanoTime() - START) / 1_000_000_000L);
+
+        long docs = docsIndexed.sum(), tokens = tokensIndexed.sum();
+        double indexSecs = indexNanos.sum() / 1e9;
+        m.put("docs_indexed", docs);
+        m.put("tokens_indexed", tokens);
+        m.put("docs_per_sec", indexSecs > 0 ? Math.round(docs / indexSecs) : 0L);
+        m.put("tokens_per_sec", indexSecs > 0 ? Math.round(tokens / indexSecs) : 0L);
+
+        long hits = 0, misses = 0;
+        for (StemCache c : stemCaches) {
+            hits += c.hits();
+            misses += c.misses();
+        }
+        m.put("stem_hits", hits);
+        m.put("stem_misses", misses);
+        m.put("stem_hit_rate", hits + misses > 0 ? round3((double) hits / (hits + misses)) : 0.0);
+
+        m.put("collection_bytes_read", collectionBytes.sum());
+        m.put("postings_bytes_read", postingsBytes.sum());
+
+        long q = queries.sum();
+        m.put("queries", q);
+        m.put("postings_decoded", postingsDecoded.sum());
+        m.put("postings_per_query", q > 0 ? postingsDecoded.sum() / q : 0L);
+        m.put("accumulator_docs_per_query", q > 0 ? accumulatorDocs.sum() / q : 0L);
+        m.put("accumulator_docs_max", accumulatorMax.get());
+        m.put("query_p50_us", queryNanos.percentile(0.50) / 1000);
+        m.put("query_p99_us", queryNanos.percentile(0.99) / 1000);
+        m.put("query_max_us", queryNanos.max() / 1000);
+
+        long cacheHits = 0, cacheMisses = 0, cached = 0, evictions = 0;
+        for (QueryCache c : queryCaches) {
+            cacheHits += c.hits();
+            cacheMisses += c.misses();
+            cached += c.size();
+            evictions += c.evictions();
+        }
+        m.put("query_cache_hits", cacheHits);
+        m.put("query_cache_misses", cacheMisses);
+        m.put("query_cache_hit_rate", cacheHits + cacheMisses > 0
+                ? round3((double) cacheHits / (cacheHits + cacheMisses)) : 0.0);
+        m.put("query_cache_entries", cached);
+        m.put("query_cache_evictions", evictions);
+        return m;
+    }
+
+    private static double round3(double v) {
+        return Math.round(v * 1000) / 1000.0;
+    }
+
+    static String text() {
+        StringBuilder sb = new StringBuilder("metrics");
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    static String json() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    static void dump(boolean asJson) {
+        System.err.println(asJson ? json() : text());
+    }
+
+    // Registers the JMX bean and, if seconds > 0, dumps a line to stderr
+    // every that many seconds from a daemon thread.
+    static synchronized void start(int seconds, boolean asJson) {
+        exposeJmx();
+        if (seconds <= 0) return;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "telemetry");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> dump(asJson), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    static synchronized void exposeJmx() {
+        if (jmx) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new Bean(), new ObjectName("ir:type=Telemetry"));
+            jmx = true;
+        } catch (JMException e) {
+            System.err.println("Warning: could not register telemetry with JMX: " + e.getMessage());
+        }
+    }
+
+    // read-only attributes named like the snapshot keys
+    private static final class Bean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Number v = snapshot().get(name);
+            if (v == null) throw new AttributeNotFoundException(name);
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Number> m = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (m.containsKey(name)) list.add(new Attribute(name, m.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Telemetry attributes are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+                attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                        e.getKey().replace('_', ' '), true, false, false));
+            }
+            return new MBeanInfo(Telemetry.class.getName(), "Indexing and query counters",
+                    attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
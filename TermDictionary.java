@@ -0,0 +1,292 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+// Frozen term dictionary: term <-> termID over the terms in sorted order,
+// front-coded in blocks of BLOCK_SIZE terms.
+//
+// Layout (big-endian):
+//   header      MAGIC, VERSION, numTerms, maxTermId, BLOCK_SIZE
+//   blocks      numBlocks ints: file offset of each block
+//   termIds     numTerms ints: termID of the term at each ordinal
+//   ordinals    maxTermId + 1 ints: ordinal of each termID, -1 if unused
+//   data        per block, per term: varint length of the prefix shared with
+//               the previous term of the block (0 for the first), varint
+//               suffix length, suffix bytes
+//
+// Terms are ASCII (Tokenizer output), one byte per char. The file is mapped
+// read-only like BinaryIndex, so opening it parses nothing. An exact lookup
+// binary-searches the first terms of the blocks and then scans one block,
+// comparing the key against the front-coded suffixes in place. It takes a
+// char[] slice straight from the Tokenizer and allocates nothing. Ordinals
+// follow the sort order, so a prefix or a range of terms is a run of
+// consecutive ordinals.
+class TermDictionary implements Closeable {
+
+    static final int MAGIC = 0x49524431; // "IRD1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    static final int BLOCK_SIZE = 16;
+
+    // null when built in memory
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private final int numTerms;
+    private final int maxTermId;
+    private final int blockSize;
+    private final int numBlocks;
+    private final int termIdTable;
+    private final int ordinalTable;
+
+    private TermDictionary(FileChannel channel, ByteBuffer buf) throws IOException {
+        this.channel = channel;
+        this.buf = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("Not a term dictionary (bad magic/version)");
+        }
+        this.numTerms = buf.getInt(8);
+        this.maxTermId = buf.getInt(12);
+        this.blockSize = buf.getInt(16);
+        this.numBlocks = (numTerms + blockSize - 1) / blockSize;
+        this.termIdTable = HEADER_SIZE + 4 * numBlocks;
+        this.ordinalTable = termIdTable + 4 * numTerms;
+    }
+
+    static TermDictionary open(String filename) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        return new TermDictionary(ch, mb);
+    }
+
+    // The same structure on the heap, for dictionaries read from text.
+    static TermDictionary of(Collection<String> terms, ToIntFunction<String> termIdOf) throws IOException {
+        return new TermDictionary(null, encode(terms, termIdOf));
+    }
+
+    // Writes aside and renames over filename, so a reader that has the old
+    // file mapped keeps a consistent copy.
+    static void write(String filename, Collection<String> terms, ToIntFunction<String> termIdOf) throws IOException {
+        ByteBuffer bb = encode(terms, termIdOf);
+        Path tmp = Paths.get(filename + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining()) out.write(bb);
+        }
+        Files.move(tmp, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer encode(Collection<String> terms, ToIntFunction<String> termIdOf) throws IOException {
+        String[] sorted = terms.toArray(new String[0]);
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        int numBlocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] termIds = new int[n];
+        int maxTermId = -1;
+        for (int i = 0; i < n; i++) {
+            termIds[i] = termIdOf.applyAsInt(sorted[i]);
+            if (termIds[i] < 0) throw new IOException("Negative termID for " + sorted[i]);
+            maxTermId = Math.max(maxTermId, termIds[i]);
+        }
+        int[] ordinals = new int[maxTermId + 1];
+        Arrays.fill(ordinals, -1);
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && sorted[i].equals(sorted[i - 1])) throw new IOException("Duplicate term " + sorted[i]);
+            ordinals[termIds[i]] = i;
+        }
+
+        // at most two 5-byte varints plus the suffix per term
+        long maxData = 0;
+        for (String term : sorted) maxData += 10 + term.length();
+        int dataStart = HEADER_SIZE + 4 * numBlocks + 4 * n + 4 * ordinals.length;
+        if (dataStart + maxData > Integer.MAX_VALUE) throw new IOException("Dictionary too large");
+        ByteBuffer bb = ByteBuffer.allocate((int) (dataStart + maxData));
+        bb.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(maxTermId).putInt(BLOCK_SIZE);
+        int blockTable = bb.position();
+        bb.position(blockTable + 4 * numBlocks);
+        for (int id : termIds) bb.putInt(id);
+        for (int o : ordinals) bb.putInt(o);
+
+        for (int i = 0; i < n; i++) {
+            String term = sorted[i];
+            int prefix = 0;
+            if (i % BLOCK_SIZE == 0) {
+                bb.putInt(blockTable + 4 * (i / BLOCK_SIZE), bb.position());
+            } else {
+                String prev = sorted[i - 1];
+                int max = Math.min(prev.length(), term.length());
+                while (prefix < max && prev.charAt(prefix) == term.charAt(prefix)) prefix++;
+            }
+            PostingsCodec.Varint.put(bb, prefix);
+            PostingsCodec.Varint.put(bb, term.length() - prefix);
+            for (int c = prefix; c < term.length(); c++) {
+                char ch = term.charAt(c);
+                if (ch > 0x7F) throw new IOException("Non-ASCII term " + term);
+                bb.put((byte) ch);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    int size() {
+        return numTerms;
+    }
+
+    // termID of the slice, -1 if it is not a term
+    int termId(char[] s, int off, int len) {
+        int ord = seek(null, s, off, len);
+        return ord >= 0 ? termIdAt(ord) : -1;
+    }
+
+    int termId(CharSequence term) {
+        int ord = seek(term, null, 0, term.length());
+        return ord >= 0 ? termIdAt(ord) : -1;
+    }
+
+    // the term of a termID, null if unused
+    String term(int termId) {
+        if (termId < 0 || termId > maxTermId) return null;
+        int ord = buf.getInt(ordinalTable + 4 * termId);
+        return ord < 0 ? null : termAt(ord);
+    }
+
+    int termIdAt(int ordinal) {
+        return buf.getInt(termIdTable + 4 * ordinal);
+    }
+
+    String termAt(int ordinal) {
+        String[] found = new String[1];
+        forEach(ordinal, ordinal + 1, (t, id) -> found[0] = t);
+        return found[0];
+    }
+
+    // ordinal of the first term >= key (size() if none)
+    int ceiling(CharSequence key) {
+        int ord = seek(key, null, 0, key.length());
+        return ord >= 0 ? ord : -ord - 1;
+    }
+
+    // Calls action(term, termID) for the ordinals [from, to), in sorted order.
+    void forEach(int from, int to, ObjIntConsumer<String> action) {
+        to = Math.min(to, numTerms);
+        if (from < 0 || from >= to) return;
+        char[] term = new char[32];
+        // decoding starts at the block holding from, whose first term is stored whole
+        int p = 0;
+        for (int ord = from / blockSize * blockSize; ord < to; ord++) {
+            if (ord % blockSize == 0) p = buf.getInt(HEADER_SIZE + 4 * (ord / blockSize));
+            int prefix = getVarint(p);
+            p = skipVarint(p);
+            int suffix = getVarint(p);
+            p = skipVarint(p);
+            int len = prefix + suffix;
+            if (term.length < len) term = Arrays.copyOf(term, Math.max(len, term.length * 2));
+            for (int i = 0; i < suffix; i++) term[prefix + i] = (char) (buf.get(p++) & 0xFF);
+            if (ord >= from) action.accept(new String(term, 0, len), termIdAt(ord));
+        }
+    }
+
+    // Calls action(term, termID) for every term starting with prefix, in sorted order.
+    void forEachWithPrefix(CharSequence prefix, ObjIntConsumer<String> action) {
+        forEach(ceiling(prefix), prefixEnd(prefix), action);
+    }
+
+    // ordinal past the last term starting with prefix
+    int prefixEnd(CharSequence prefix) {
+        int n = prefix.length();
+        if (n == 0) return numTerms;
+        // the smallest key above every extension of prefix: its last char + 1
+        StringBuilder next = new StringBuilder(prefix);
+        next.setCharAt(n - 1, (char) (prefix.charAt(n - 1) + 1));
+        return ceiling(next);
+    }
+
+    // Ordinal of the key (from s, or else a[off .. off + len)), or
+    // -(insertion point) - 1 like Arrays.binarySearch.
+    private int seek(CharSequence s, char[] a, int off, int len) {
+        // last block whose first term is <= key
+        int lo = 0, hi = numBlocks - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareFirst(mid, s, a, off, len);
+            if (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else return mid * blockSize;
+        }
+        if (hi < 0) return -1;
+
+        // Scan the block. matched = chars of the key equal to the start of
+        // the current term, which sorts below the key. A term sharing more
+        // than matched chars with its predecessor is below the key too; one
+        // sharing fewer is above it; otherwise its suffix decides.
+        int ord = hi * blockSize;
+        int end = Math.min(numTerms, ord + blockSize);
+        int p = buf.getInt(HEADER_SIZE + 4 * hi);
+        int matched = 0;
+        for (; ord < end; ord++) {
+            int prefix = getVarint(p);
+            p = skipVarint(p);
+            int suffix = getVarint(p);
+            p = skipVarint(p);
+            if (prefix < matched) return -ord - 1;
+            if (prefix == matched) {
+                int i = 0;
+                while (i < suffix && matched < len && (buf.get(p + i) & 0xFF) == charAt(s, a, off, matched)) {
+                    i++;
+                    matched++;
+                }
+                if (i == suffix) {
+                    if (matched == len) return ord;
+                    // the term is a prefix of the key: below it
+                } else if (matched == len || (buf.get(p + i) & 0xFF) > charAt(s, a, off, matched)) {
+                    return -ord - 1;
+                }
+            }
+            p += suffix;
+        }
+        return -end - 1;
+    }
+
+    // compares the first term of block with the key
+    private int compareFirst(int block, CharSequence s, char[] a, int off, int len) {
+        int p = buf.getInt(HEADER_SIZE + 4 * block);
+        p = skipVarint(p);
+        int n = getVarint(p);
+        p = skipVarint(p);
+        int m = Math.min(n, len);
+        for (int i = 0; i < m; i++) {
+            int d = (buf.get(p + i) & 0xFF) - charAt(s, a, off, i);
+            if (d != 0) return d;
+        }
+        return n - len;
+    }
+
+    private static int charAt(CharSequence s, char[] a, int off, int i) {
+        return s != null ? s.charAt(i) : a[off + i];
+    }
+
+    private int getVarint(int p) {
+        int v = 0, shift = 0, b;
+        do {
+            b = buf.get(p++);
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    private int skipVarint(int p) {
+        while ((buf.get(p++) & 0x80) != 0) {
+        }
+        return p;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,69 @@
+// Splits text into lowercase ASCII word tokens without allocating per token.
+//
+// Tokens are maximal runs of letters (and digits, if enabled); each one is
+// case-folded into a reusable buffer, so callers read it as
+// buffer()[0 .. length()) and only create a String when they need to keep it.
+class Tokenizer {
+
+    private final boolean digits;
+    private CharSequence text;
+    private int pos;
+    private char[] buf = new char[32];
+    private int length;
+
+    // digits=false gives the collection tokens ([a-zA-Z]+), digits=true the
+    // query tokens ([a-z0-9]+ after lowercasing)
+    Tokenizer(boolean digits) {
+        this.digits = digits;
+    }
+
+    Tokenizer reset(CharSequence text) {
+        this.text = text;
+        this.pos = 0;
+        this.length = 0;
+        return this;
+    }
+
+    boolean next() {
+        CharSequence t = text;
+        int n = t.length();
+        int i = pos;
+        while (i < n && fold(t.charAt(i)) == 0) i++;
+        if (i == n) {
+            pos = n;
+            length = 0;
+            return false;
+        }
+        int len = 0;
+        char c;
+        while (i < n && (c = fold(t.charAt(i))) != 0) {
+            if (len == buf.length) buf = java.util.Arrays.copyOf(buf, len * 2);
+            buf[len++] = c;
+            i++;
+        }
+        pos = i;
+        length = len;
+        return true;
+    }
+
+    // lowercase token char, or 0 for a separator
+    private char fold(char c) {
+        if (c >= 'a' && c <= 'z') return c;
+        if (c >= 'A' && c <= 'Z') return (char) (c + ('a' - 'A'));
+        if (digits && c >= '0' && c <= '9') return c;
+        return 0;
+    }
+
+    char[] buffer() {
+        return buf;
+    }
+
+    int length() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, length);
+    }
+}
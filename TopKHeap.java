@@ -0,0 +1,91 @@
+// Bounded min-heap keeping the k best (score, docId) pairs.
+// On equal scores the lower docId wins, so results are deterministic.
+class TopKHeap {
+
+    private final int k;
+    private final int[] docIds;
+    private final double[] scores;
+    private int size = 0;
+
+    TopKHeap(int k) {
+        this.k = k;
+        this.docIds = new int[k];
+        this.scores = new double[k];
+    }
+
+    boolean isFull() {
+        return size == k;
+    }
+
+    // score a document must beat to enter once the heap is full
+    double threshold() {
+        return size == k ? scores[0] : 0.0;
+    }
+
+    boolean offer(int docId, double score) {
+        if (size < k) {
+            docIds[size] = docId;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!worse(0, docId, score)) return false;
+        docIds[0] = docId;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    // is the entry at slot i worse than (docId, score)?
+    private boolean worse(int i, int docId, double score) {
+        if (scores[i] != score) return scores[i] < score;
+        return docIds[i] > docId;
+    }
+
+    private boolean worse(int i, int j) {
+        return worse(i, docIds[j], scores[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, min = i;
+            if (l < size && worse(l, min)) min = l;
+            if (r < size && worse(r, min)) min = r;
+            if (min == i) return;
+            swap(i, min);
+            i = min;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int d = docIds[a]; docIds[a] = docIds[b]; docIds[b] = d;
+        double s = scores[a]; scores[a] = scores[b]; scores[b] = s;
+    }
+
+    // Drains the heap into a ranking sorted best first.
+    QueryProcessor.Ranking drain() {
+        int n = size;
+        int[] outDocs = new int[n];
+        double[] outScores = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            outDocs[i] = docIds[0];
+            outScores[i] = scores[0];
+            size--;
+            if (size > 0) {
+                docIds[0] = docIds[size];
+                scores[0] = scores[size];
+                siftDown(0);
+            }
+        }
+        return new QueryProcessor.Ranking(outDocs, outScores, n);
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.GZIPInputStream;
+
+// Streaming reader for TREC SGML collection files:
+//
+//   <DOC> <DOCNO>FT911-1</DOCNO> ... <TEXT> ... </TEXT> ... </DOC>
+//
+// Bytes are pulled through an NIO channel into a buffer that only ever holds
+// the current document, so memory stays constant however large the file is.
+// Files ending in .gz are decompressed on the fly. Tag matching is ASCII
+// case-insensitive; documents without a DOCNO or TEXT element are skipped.
+// text() and headline() are views into the buffer and are only valid until the
+// next call to next().
+class TrecReader implements Closeable {
+
+    private static final byte[] DOC_OPEN = ascii("<DOC>");
+    private static final byte[] DOC_CLOSE = ascii("</DOC>");
+    private static final byte[] DOCNO_OPEN = ascii("<DOCNO>");
+    private static final byte[] DOCNO_CLOSE = ascii("</DOCNO>");
+    private static final byte[] TEXT_OPEN = ascii("<TEXT>");
+    private static final byte[] TEXT_CLOSE = ascii("</TEXT>");
+    private static final byte[] HEADLINE_OPEN = ascii("<HEADLINE>");
+    private static final byte[] HEADLINE_CLOSE = ascii("</HEADLINE>");
+
+    private final ReadableByteChannel in;
+    private byte[] buf = new byte[1 << 16];
+    private int start = 0;   // first unconsumed byte
+    private int limit = 0;   // end of valid data
+    private boolean eof = false;
+
+    private String docNo;
+    private final Slice text = new Slice();
+    private final Slice headline = new Slice();
+
+    TrecReader(File f) throws IOException {
+        if (f.getName().endsWith(".gz")) {
+            in = Channels.newChannel(new GZIPInputStream(new FileInputStream(f), 1 << 16));
+        } else {
+            in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    // Advances to the next complete document; false at end of input.
+    boolean next() throws IOException {
+        while (true) {
+            int docStart = find(DOC_OPEN, start);
+            if (docStart < 0) return false;
+            start = docStart;
+            int docEnd = find(DOC_CLOSE, start);
+            if (docEnd < 0) {
+                // unterminated last document: take what is left
+                docEnd = limit;
+            }
+            // reading more input may have moved the document to the front of the buffer
+            docStart = start;
+            start = Math.min(limit, docEnd + DOC_CLOSE.length);
+
+            int noStart = indexOf(DOCNO_OPEN, docStart, docEnd);
+            int noEnd = noStart < 0 ? -1 : indexOf(DOCNO_CLOSE, noStart, docEnd);
+            int textStart = indexOf(TEXT_OPEN, docStart, docEnd);
+            int textEnd = textStart < 0 ? -1 : indexOf(TEXT_CLOSE, textStart, docEnd);
+            if (noEnd < 0 || textEnd < 0) continue;
+
+            docNo = ascii(noStart + DOCNO_OPEN.length, noEnd).trim();
+            text.set(textStart + TEXT_OPEN.length, textEnd);
+
+            // optional
+            int headStart = indexOf(HEADLINE_OPEN, docStart, docEnd);
+            int headEnd = headStart < 0 ? -1 : indexOf(HEADLINE_CLOSE, headStart, docEnd);
+            if (headEnd < 0) headline.set(0, 0);
+            else headline.set(headStart + HEADLINE_OPEN.length, headEnd);
+            return true;
+        }
+    }
+
+    String docNo() {
+        return docNo;
+    }
+
+    CharSequence text() {
+        return text;
+    }
+
+    // HEADLINE element, empty if the document has none
+    CharSequence headline() {
+        return headline;
+    }
+
+    // Position of tag at or after from, reading more input as needed; -1 at end of input.
+    // Bytes before 'start' are compacted away when the buffer has to grow.
+    private int find(byte[] tag, int from) throws IOException {
+        int offset = from - start;
+        while (true) {
+            int at = indexOf(tag, start + offset, limit);
+            if (at >= 0) return at;
+            if (eof) return -1;
+            // keep the tail that could hold a partial tag
+            offset = Math.max(offset, limit - start - tag.length + 1);
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            limit -= start;
+            start = 0;
+        }
+        if (limit == buf.length) {
+            byte[] bigger = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, bigger, 0, limit);
+            buf = bigger;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buf, limit, buf.length - limit);
+        int n = in.read(bb);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+            Telemetry.collectionBytes.add(n);
+        }
+    }
+
+    private int indexOf(byte[] tag, int from, int to) {
+        int last = to - tag.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < tag.length; j++) {
+                // OR-ing 0x20 folds ASCII case and leaves '<', '/', '>' unchanged
+                if ((buf[i + j] | 0x20) != (tag[j] | 0x20)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private String ascii(int from, int to) {
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Latin-1 view over a range of the buffer.
+    private class Slice implements CharSequence {
+        private int from, to;
+
+        void set(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buf[from + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int s, int e) {
+            return new String(buf, from + s, e - s, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ObjIntConsumer;
+
+// Expands wildcard query words (privat*, *ation, pri*te) to the dictionary
+// terms they match. Terms are stems, so a pattern is matched against the
+// stems: privat* finds privat, privatis, ... where privatiz* finds nothing.
+//
+// A pattern with a literal prefix is a range scan of the sorted dictionary,
+// filtered by the rest of the pattern. A leading wildcard goes through a
+// 3-gram index of the terms ($ marks a term's start and end), built on first
+// use: the terms having every 3-gram of the pattern's literal pieces are
+// intersected by ordinal and then checked against the whole pattern. Without
+// any 3-gram (*ab*) every term is checked.
+//
+// Of the matching terms only the limit with the highest df are kept, so a
+// broad pattern costs at most limit postings lists.
+class Wildcards {
+
+    // '$', a-z, 0-9
+    private static final int SYMBOLS = 37;
+
+    private final TermDictionary dictionary;
+    // 3-gram code -> ascending ordinals of the terms containing it
+    private volatile int[][] grams;
+
+    Wildcards(TermDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    // Terms matching pattern (lowercase letters, digits and *), most frequent
+    // first, at most limit of them; terms with df 0 are left out. A pattern
+    // without letters or digits matches nothing.
+    List<String> expand(String pattern, int limit, IntUnaryOperator df) {
+        if (limit <= 0 || pattern.replace("*", "").isEmpty()) return new ArrayList<>();
+        Matches found = new Matches(pattern, df);
+        int star = pattern.indexOf('*');
+        if (star > 0) {
+            String prefix = pattern.substring(0, star);
+            dictionary.forEach(dictionary.ceiling(prefix), dictionary.prefixEnd(prefix), found);
+        } else {
+            int[] candidates = candidates(pattern);
+            if (candidates == null) {
+                dictionary.forEach(0, dictionary.size(), found);
+            } else {
+                for (int ord : candidates) found.accept(dictionary.termAt(ord), dictionary.termIdAt(ord));
+            }
+        }
+        return found.top(limit);
+    }
+
+    // matching terms seen so far, with their df
+    private static final class Matches implements ObjIntConsumer<String> {
+        private final String pattern;
+        private final IntUnaryOperator df;
+        private final List<String> terms = new ArrayList<>();
+        // (Integer.MAX_VALUE - df) << 32 | index in terms: sorts by df descending, then dictionary order
+        private long[] keys = new long[16];
+
+        Matches(String pattern, IntUnaryOperator df) {
+            this.pattern = pattern;
+            this.df = df;
+        }
+
+        @Override
+        public void accept(String term, int termId) {
+            if (!matches(term, pattern)) return;
+            int f = df.applyAsInt(termId);
+            if (f <= 0) return;
+            int n = terms.size();
+            if (n == keys.length) keys = Arrays.copyOf(keys, n * 2);
+            keys[n] = (long) (Integer.MAX_VALUE - f) << 32 | n;
+            terms.add(term);
+        }
+
+        List<String> top(int limit) {
+            long[] sorted = Arrays.copyOf(keys, terms.size());
+            Arrays.sort(sorted);
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < sorted.length && i < limit; i++) result.add(terms.get((int) sorted[i]));
+            return result;
+        }
+    }
+
+    // ordinals of the terms with every 3-gram of pattern, null if it has none
+    private int[] candidates(String pattern) {
+        int[][] index = grams();
+        String[] pieces = pattern.split("\\*", -1);
+        int[] result = null;
+        for (int p = 0; p < pieces.length; p++) {
+            String piece = (p == 0 ? "$" : "") + pieces[p] + (p == pieces.length - 1 ? "$" : "");
+            for (int i = 0; i + 3 <= piece.length(); i++) {
+                int code = code(piece, i);
+                if (code < 0) return new int[0];
+                int[] ords = index[code];
+                if (ords == null) return new int[0];
+                result = result == null ? ords : intersect(result, ords);
+                if (result.length == 0) return result;
+            }
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private int[][] grams() {
+        int[][] g = grams;
+        if (g != null) return g;
+        synchronized (this) {
+            if (grams == null) grams = buildGrams();
+            return grams;
+        }
+    }
+
+    // Two passes over the dictionary in ordinal order: count each 3-gram's
+    // terms, then fill the lists. last[] skips a 3-gram repeated in a term.
+    private int[][] buildGrams() {
+        int size = SYMBOLS * SYMBOLS * SYMBOLS;
+        int[] counts = new int[size];
+        int[] last = new int[size];
+        Arrays.fill(last, -1);
+        int[] ord = {0};
+        dictionary.forEach(0, dictionary.size(), (term, termId) -> {
+            String padded = "$" + term + "$";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                int code = code(padded, i);
+                if (code >= 0 && last[code] != ord[0]) {
+                    last[code] = ord[0];
+                    counts[code]++;
+                }
+            }
+            ord[0]++;
+        });
+
+        int[][] index = new int[size][];
+        for (int c = 0; c < size; c++) {
+            if (counts[c] > 0) index[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        Arrays.fill(last, -1);
+        ord[0] = 0;
+        dictionary.forEach(0, dictionary.size(), (term, termId) -> {
+            String padded = "$" + term + "$";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                int code = code(padded, i);
+                if (code >= 0 && last[code] != ord[0]) {
+                    last[code] = ord[0];
+                    index[code][counts[code]++] = ord[0];
+                }
+            }
+            ord[0]++;
+        });
+        return index;
+    }
+
+    // 3-gram starting at s[i] as a number, -1 if it has another character
+    private static int code(String s, int i) {
+        int code = 0;
+        for (int j = i; j < i + 3; j++) {
+            int sym = symbol(s.charAt(j));
+            if (sym < 0) return -1;
+            code = code * SYMBOLS + sym;
+        }
+        return code;
+    }
+
+    private static int symbol(char c) {
+        if (c == '$') return 0;
+        if (c >= 'a' && c <= 'z') return 1 + c - 'a';
+        if (c >= '0' && c <= '9') return 27 + c - '0';
+        return -1;
+    }
+
+    // glob match where * is any run of characters, including none
+    static boolean matches(String term, String pattern) {
+        int t = 0, p = 0, starP = -1, starT = 0;
+        while (t < term.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = p++;
+                starT = t;
+            } else if (p < pattern.length() && pattern.charAt(p) == term.charAt(t)) {
+                p++;
+                t++;
+            } else if (starP >= 0) {
+                // let the last * swallow one more character
+                p = starP + 1;
+                t = ++starT;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+        return p == pattern.length();
+    }
+}
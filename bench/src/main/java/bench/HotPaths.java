@@ -0,0 +1,37 @@
+package bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// JMH runs of the Bench benchmarks, one per @Param value, against the ft911
+// collection and index files in the working directory (run Indexer first,
+// then java -jar bench/target/benchmarks.jar from the repository root).
+// Each invocation is one full pass, as in Bench; JMH handles warmup, forking
+// and dead-code elimination (the returned count is consumed).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HotPaths {
+
+    @Param({"read", "tokenize", "porter", "stemcache", "index", "startup", "dict",
+            "varint", "pfor", "title", "titledesc", "titlenarr"})
+    public String benchmark;
+
+    private Callable<Long> body;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        body = (Callable<Long>) Class.forName("Bench").getMethod("body", String.class).invoke(null, benchmark);
+    }
+
+    @Benchmark
+    public long run() throws Exception {
+        return body.call();
+    }
+}